@@ -18,10 +18,10 @@
     LONG_ZERO               nil                                        nil
     LONG_ONE                nil                                        nil
     LONG_MINUS_ONE          nil                                        nil
-    IO_INPUT_STREAM         "`java.io.InputStream`"                    "When decoding, the bytes are put into a `ByteArrayInputStream`. It's also possible to put them into a temp file and obtain a `FileInputStream`"
+    IO_INPUT_STREAM         "`java.io.InputStream`"                    "When decoding, the bytes are put into a `ByteArrayInputStream`. With `:io-temp-file?`, large payloads go into a temp file deleted on close"
     IO_READER               "-"                                        "Not implemented"
-    IO_FILE                 "-"                                        "Not implemented"
-    IO_BYTEBUFFER           "`java.nio.ByteBuffer`"                    nil
+    IO_FILE                 "`java.io.File`, `java.nio.file.Path`"     "The content of a file. Sent with `FileChannel.transferTo` when encoding to a file or a channel. Decoded as an `InputStream`"
+    IO_BYTEBUFFER           "`java.nio.ByteBuffer`"                    "Heap, direct or read-only; only the bytes between position and limit are stored"
     ARR_BYTE                "`byte[]`"                                 nil
     ARR_INT                 "`int[]`"                                  nil
     ARR_SHORT               "`short[]`"                                nil
@@ -109,6 +109,18 @@
     CLJ_BIG_INT             "`clojure.lang.BigInt`"                    nil
     CLJ_RATIO               "`clojure.lang.Ratio`"                     nil
     VECTORZ_AVECTOR         "`mikera.vectorz.AVector`"                 "See the `deed-vectorz` package"
+    STRING_REF              nil                                        "A back-reference to a recent keyword, symbol or short string, see `:dedupe-strings?`"
+    OBJ_REF_NEW             nil                                        "Precedes an object that might be referenced later, see `:track-refs?`"
+    OBJ_REF                 nil                                        "A reference to an object met before, see `:track-refs?`"
+    CLJ_MAP_SHAPE           nil                                        "A small Clojure map with keyword keys defining a new shape, see `:map-shapes?`"
+    CLJ_MAP_SHAPED          nil                                        "A small Clojure map written as a shape number and values, see `:map-shapes?`"
+    CLJ_VEC_COLUMNS         nil                                        "A vector of maps with the same keys stored by columns, see `:columnar?`"
+    CLJ_VEC_LONGS           nil                                        "A vector or a list of longs packed into one block, see `:pack-numbers?`"
+    CLJ_VEC_DOUBLES         nil                                        "A vector or a list of doubles packed into one block, see `:pack-numbers?`"
+    ARR_LONG_DELTA          nil                                        "A `long[]` array with delta, varint and run-length encoding, see `:delta?`"
+    CLJ_VEC_LONGS_DELTA     nil                                        "A packed vector of longs with delta encoding, see `:delta?`"
+    CLJ_VEC_INSTANTS        nil                                        "A vector of `java.time.Instant` with delta encoding, see `:delta?`"
+    CLJ_VEC_DATES           nil                                        "A vector of `java.util.Date` with delta encoding, see `:delta?`"
     ])
 
 
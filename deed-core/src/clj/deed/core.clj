@@ -1,14 +1,23 @@
 (ns deed.core
   (:require
+   [clojure.core.reducers :as r]
    [clojure.java.io :as io])
   (:import
-   (java.util.concurrent Future)
+   (java.util.concurrent Future
+                         ForkJoinPool)
    (java.nio ByteBuffer)
+   (java.nio.channels WritableByteChannel)
+   (java.nio.file Path)
    (java.io IOException
+            ByteArrayInputStream
             InputStream
-            ByteArrayOutputStream
+            File
+            FileOutputStream
+            OutputStream
             Writer)
-   (clojure.lang APersistentVector
+   (clojure.lang IFn
+                 MultiFn
+                 APersistentVector
                  ITransientVector
                  APersistentSet
                  APersistentMap
@@ -34,7 +43,8 @@
    (java.net URL
              URI)
    (java.util.zip GZIPInputStream
-                  GZIPOutputStream)
+                  GZIPOutputStream
+                  Deflater)
    (java.time LocalDate
               LocalTime
               LocalDateTime
@@ -56,10 +66,14 @@
          Decoder
          FutureWrapper
          Err
+         Const
          Header
          EOF
          Options
          IOTool
+         ParallelGZIPOutputStream
+         FrameInputStream
+         ParallelDecoder
          Unsupported)))
 
 (set! *warn-on-reflection* true)
@@ -137,6 +151,14 @@
   (-encode [this ^Encoder encoder]
     (.encodeInputStream encoder this))
 
+  File
+  (-encode [this ^Encoder encoder]
+    (.encodeFile encoder this))
+
+  Path
+  (-encode [this ^Encoder encoder]
+    (.encodePath encoder this))
+
   ;;
   ;; String
   ;;
@@ -472,8 +494,25 @@
                   uncountable-max-items
                   encode-unsupported?
                   io-temp-file?
+                  io-temp-file-threshold
                   save-meta?
-                  append?]}
+                  append?
+                  buffer-size
+                  zero-copy?
+                  varint?
+                  version
+                  dedupe-strings?
+                  track-refs?
+                  map-shapes?
+                  columnar?
+                  keep-columns?
+                  pack-numbers?
+                  delta?
+                  frame?
+                  frame-codec
+                  frame-size
+                  frame-checksum?
+                  frame-aligned?]}
           opts]
 
       (cond-> (Options/builder)
@@ -496,12 +535,68 @@
         (boolean? io-temp-file?)
         (.ioUseTempFile io-temp-file?)
 
+        io-temp-file-threshold
+        (.ioTempFileThreshold io-temp-file-threshold)
+
         (boolean? save-meta?)
         (.saveMeta save-meta?)
 
         (boolean? append?)
         (.append append?)
 
+        buffer-size
+        (.bufferSize buffer-size)
+
+        (boolean? zero-copy?)
+        (.zeroCopy zero-copy?)
+
+        (boolean? varint?)
+        (.varint varint?)
+
+        version
+        (.version (short version))
+
+        (boolean? dedupe-strings?)
+        (.dedupeStrings dedupe-strings?)
+
+        (boolean? track-refs?)
+        (.trackRefs track-refs?)
+
+        (boolean? map-shapes?)
+        (.mapShapes map-shapes?)
+
+        (boolean? columnar?)
+        (.columnar columnar?)
+
+        (boolean? keep-columns?)
+        (.keepColumns keep-columns?)
+
+        (boolean? pack-numbers?)
+        (.packNumbers pack-numbers?)
+
+        (boolean? delta?)
+        (.delta delta?)
+
+        (boolean? frame?)
+        (.framed frame?)
+
+        frame-codec
+        (.frameCodec (byte (case frame-codec
+                             :lz Const/FRAME_CODEC_LZ
+                             :none Const/FRAME_CODEC_NONE
+                             (throw (Err/error nil
+                                               "unknown frame codec: %s"
+                                               (into-array [frame-codec]))))))
+
+        frame-size
+        (.frameSize frame-size)
+
+        (boolean? frame-checksum?)
+        (.frameChecksum frame-checksum?)
+
+        (boolean? frame-aligned?)
+        (.frameAligned frame-aligned?)
+
         :finally
         (.build)))))
 
@@ -524,6 +619,25 @@
       (IOTool/wrapGZIPOutputStream)))
 
 
+(defn parallel-gzip-output-stream
+  "
+  Like `gzip-output-stream` but deflates blocks of data
+  in parallel. The result is a regular gzip stream. The
+  optional map accepts an `ExecutorService` (`:executor`,
+  the common ForkJoin pool by default), the `:block-size`
+  in bytes and the compression `:level` (0..9).
+  "
+  (^ParallelGZIPOutputStream [out]
+   (IOTool/wrapParallelGZIPOutputStream
+    (io/output-stream out)))
+  (^ParallelGZIPOutputStream [out {:keys [executor block-size level]}]
+   (IOTool/wrapParallelGZIPOutputStream
+    (io/output-stream out)
+    (or executor (ForkJoinPool/commonPool))
+    (int (or block-size Const/GZIP_BLOCK_SIZE))
+    (int (or level Deflater/DEFAULT_COMPRESSION)))))
+
+
 ;;
 ;; API
 ;;
@@ -532,30 +646,78 @@
   "
   Make an `Encoder` instance. The `out` is anything
   that can be transformed into an `OutputStream`
-  using the `io/output-stream` function. The `options`
-  is either a Clojure map or nil.
+  using the `io/output-stream` function. When `out`
+  is a `ByteBuffer`, the data is written straight into
+  it (see `encode-to-byte-buffer`). Files and channels
+  receive encoded files via `FileChannel.transferTo`.
+  The `options` is either a Clojure map or nil.
   "
   (^Encoder [out]
    (encoder out nil))
   (^Encoder [out options]
-   (Encoder/create -encode
-                   (io/output-stream out)
-                   (->options options))))
+   (let [opts (->options options)]
+     (cond
+
+       (instance? ByteBuffer out)
+       (Encoder/create ^IFn -encode ^ByteBuffer out opts)
+
+       (instance? WritableByteChannel out)
+       (Encoder/create ^IFn -encode ^WritableByteChannel out opts)
+
+       ;; the encoder is buffered already
+       (instance? File out)
+       (Encoder/create ^IFn -encode
+                       (new FileOutputStream ^File out)
+                       opts)
+
+       :else
+       (Encoder/create ^IFn -encode
+                       ^OutputStream (io/output-stream out)
+                       opts)))))
+
+
+(defn- memory-encoder
+  ^Encoder [^ByteBuffer buf options]
+  (if (nil? buf)
+    (Encoder/create ^IFn -encode (->options options))
+    (encoder buf options)))
+
+
+(defn- mappable?
+  [src]
+  (and (instance? File src)
+       (.isFile ^File src)
+       (<= (.length ^File src) Integer/MAX_VALUE)))
 
 
 (defn decoder
   "
   Make a `Decoder` instance. The `src` is anything
   that can be transformed into an `InputStream`
-  using the `io/input-stream` function. The `options`
+  using the `io/input-stream` function. Byte arrays
+  and `ByteBuffer`s are read directly, and files are
+  memory-mapped, so no stream is involved. The `options`
   is either a Clojure map or nil.
   "
   (^Decoder [src]
    (decoder src nil))
   (^Decoder [src options]
-   (Decoder/create -decode
-                   (io/input-stream src)
-                   (->options options))))
+   (let [opts (->options options)]
+     (cond
+
+       (bytes? src)
+       (Decoder/create ^MultiFn -decode ^bytes src opts)
+
+       (instance? ByteBuffer src)
+       (Decoder/create ^MultiFn -decode ^ByteBuffer src opts)
+
+       (mappable? src)
+       (Decoder/create ^MultiFn -decode ^File src opts)
+
+       :else
+       (Decoder/create ^MultiFn -decode
+                       (io/input-stream src)
+                       opts)))))
 
 
 (defn version
@@ -574,6 +736,20 @@
   (.encode encoder x))
 
 
+(defn encode-parallel
+  "
+  Like `encode` but large vectors and object arrays
+  get encoded by segments in a `ForkJoinPool` (the
+  common one by default). The output is the same as
+  `encode` gives. Falls back to `encode` when strings,
+  references or map shapes are tracked.
+  "
+  ([^Encoder encoder x]
+   (.encodeParallel encoder x))
+  ([^Encoder encoder x ^ForkJoinPool pool]
+   (.encodeParallel encoder x pool)))
+
+
 (defn encode-seq
   "
   Encode a sequence of objects so they can be
@@ -592,21 +768,19 @@
   object get closed afterwards.
   "
   [[bind out options] & body]
-  `(with-open [out# (io/output-stream ~out)
-               ~bind (encoder out# ~options)]
+  `(with-open [~bind (encoder ~out ~options)]
      ~@body))
 
 
 (defmacro with-decoder
   "
   Perform the body binding the new `Decoder` object
-  to the `bind` symbol. The `src` object gets coerced
-  to the input stream. Both encoder and the `src`
-  object get closed afterwards.
+  to the `bind` symbol. The `src` object is handled
+  as in the `decoder` function. Both decoder and the
+  underlying stream get closed afterwards.
   "
   [[bind src options] & body]
-  `(with-open [src# (io/input-stream ~src)
-               ~bind (decoder src# ~options)]
+  `(with-open [~bind (decoder ~src ~options)]
      ~@body))
 
 
@@ -688,10 +862,10 @@
   (^bytes [x]
    (encode-to-bytes x nil))
 
-  (^bytes[x options]
-   (with-open [out (new ByteArrayOutputStream)]
-     (encode-to x out options)
-     (.toByteArray out))))
+  (^bytes [x options]
+   (with-open [e (memory-encoder nil options)]
+     (encode e x)
+     (.toByteArray e))))
 
 
 (defn encode-seq-to-bytes
@@ -702,9 +876,49 @@
    (encode-seq-to-bytes xs nil))
 
   (^bytes [xs options]
-   (with-open [out (new ByteArrayOutputStream)]
-     (encode-seq-to xs out options)
-     (.toByteArray out))))
+   (with-open [e (memory-encoder nil options)]
+     (encode-seq e xs)
+     (.toByteArray e))))
+
+
+(defn encode-to-byte-buffer
+  "
+  Encode a single value into a `ByteBuffer`. When
+  the `buf` heap or direct buffer is passed, write
+  into it starting from its position. If the buffer
+  is too small, a bigger one of the same kind gets
+  allocated. Return a buffer with position 0 and limit
+  set to the end of the data. The bytes are not copied,
+  so the result shares memory with `buf` unless it
+  was outgrown.
+  "
+  (^ByteBuffer [x]
+   (encode-to-byte-buffer x nil nil))
+
+  (^ByteBuffer [x options]
+   (encode-to-byte-buffer x nil options))
+
+  (^ByteBuffer [x buf options]
+   (with-open [e (memory-encoder buf options)]
+     (encode e x)
+     (.toByteBuffer e))))
+
+
+(defn encode-seq-to-byte-buffer
+  "
+  Like `encode-to-byte-buffer` but encode multiple
+  values.
+  "
+  (^ByteBuffer [xs]
+   (encode-seq-to-byte-buffer xs nil nil))
+
+  (^ByteBuffer [xs options]
+   (encode-seq-to-byte-buffer xs nil options))
+
+  (^ByteBuffer [xs buf options]
+   (with-open [e (memory-encoder buf options)]
+     (encode-seq e xs)
+     (.toByteBuffer e))))
 
 
 (defn decode-from
@@ -731,6 +945,82 @@
      (vec e))))
 
 
+(defn- ->input-stream
+  ^InputStream [src]
+  (cond
+    (bytes? src)
+    (ByteArrayInputStream. ^bytes src)
+
+    (instance? ByteBuffer src)
+    (IOTool/byteBufferInputStream (.duplicate ^ByteBuffer src))
+
+    :else
+    (io/input-stream src)))
+
+
+(defn verify
+  "
+  Check the framed data from the `src` source without
+  decoding it: the structure of the blocks and their
+  CRC32C checksums (see the `:frame-checksum?` option).
+  Blocks with no checksum get decompressed. Return a map
+  of stats or throw an exception pointing to the broken
+  block.
+  "
+  [src]
+  (with-open [in (->input-stream src)]
+    (let [stats (FrameInputStream/verify in)]
+      {:frames (.frames stats)
+       :blocks (.blocks stats)
+       :checked (.checked stats)
+       :raw-size (.rawSize stats)
+       :stored-size (.storedSize stats)})))
+
+
+(defn parallel-decoder
+  "
+  Make a `ParallelDecoder` for data encoded with the
+  `:frame-aligned?` option. It reads blocks and decodes
+  them in a `ForkJoinPool` at the same time. Besides
+  the usual options, accept `:pool` (the common pool
+  by default) and `:ordered?` (true by default). When
+  not ordered, items come block by block as soon as
+  they're ready. The result is reducible and foldable
+  with `clojure.core.reducers/fold`: each block gets
+  reduced in the pool, and the results are combined
+  in block order. Should be closed after use.
+  "
+  (^ParallelDecoder [src]
+   (parallel-decoder src nil))
+  (^ParallelDecoder [src options]
+   (let [{:keys [pool ordered?]} options]
+     (ParallelDecoder/create ^MultiFn -decode
+                             (->input-stream src)
+                             (->options options)
+                             ^ForkJoinPool (or pool (ForkJoinPool/commonPool))
+                             (if (some? ordered?)
+                               (boolean ordered?)
+                               true)))))
+
+
+(extend-protocol r/CollFold
+  ParallelDecoder
+  (coll-fold [this _n combinef reducef]
+    (.fold this combinef reducef)))
+
+
+(defn decode-seq-parallel
+  "
+  Decode all the values from the `src` source in
+  parallel (see `parallel-decoder`) into a vector.
+  "
+  ([src]
+   (decode-seq-parallel src nil))
+  ([src options]
+   (with-open [d (parallel-decoder src options)]
+     (vec d))))
+
+
 ;;
 ;; Expanding
 ;;
@@ -1,14 +1,68 @@
 package deed;
 
 public class Const {
-    public static short HEADER_GAP = 30;
+    // the rest of 30 reserved bytes after the flags
+    public static short HEADER_GAP = 26;
+    public static int HEADER_FLAG_VARINT = 1;
+    public static int HEADER_FLAG_DEDUPE_STRINGS = 2;
+    public static int HEADER_FLAGS_KNOWN = HEADER_FLAG_VARINT | HEADER_FLAG_DEDUPE_STRINGS;
+    public static int STRING_REF_TABLE_SIZE = 0x1000;
+    public static int STRING_REF_MAX_LENGTH = 64;
+    public static int KEYWORD_CACHE_SIZE = 0x400;
+    public static int KEYWORD_CACHE_MAX_LENGTH = 0x80;
+    public static int STRING_SCRATCH_MAX_SIZE = 0xFFFF;
+    public static int MAP_SHAPE_MAX_KEYS = 8;
+    public static int MAP_SHAPE_MAX_COUNT = 0x1000;
+    public static int COLUMNAR_MIN_ROWS = 8;
+    public static byte COLUMN_OBJECTS = 0;
+    public static byte COLUMN_LONGS = 1;
+    public static byte COLUMN_DOUBLES = 2;
+    public static byte COLUMN_STRINGS = 3;
+    public static int PACK_MIN_ITEMS = 4;
     public static short HEADER_VERSION = 1;
+    public static short HEADER_VERSION_COMPACT = 2;
+    public static short HEADER_VERSION_MAX = 2;
+    // set in the written version when the header has flags,
+    // so readers unaware of flags reject the data
+    public static short HEADER_VERSION_FLAGGED = 0x100;
+    public static short OID_COMPACT_MAX = 0xFD;
+    public static byte OID_ESCAPE = (byte) 0xFF;
+    // "DFRM"
+    public static int FRAME_MAGIC = 0x4446524D;
+    public static byte FRAME_VERSION = 1;
+    public static int FRAME_HEADER_SIZE = 10;
+    public static int FRAME_BLOCK_HEADER_SIZE = 9;
+    public static int FRAME_MAX_SIZE = 0x1000000;
+    public static byte FRAME_CODEC_NONE = 0;
+    public static byte FRAME_CODEC_LZ = 1;
+    public static byte FRAME_END = (byte) 0xFF;
+    public static byte FRAME_FLAG_CHECKSUM = 1;
+    public static byte FRAME_FLAG_ALIGNED = 2;
+    public static int GZIP_BLOCK_SIZE = 0x20000;
+    public static int PARALLEL_MIN_SEGMENT = 0x400;
 
     public static long OPT_DEREF_TIMEOUT_MS = 5000;
     public static int OPT_OBJECT_CHUNK_SIZE = 0xFF;
     public static int OPT_BYTE_CHUNK_SIZE = 0xFFFF;
     public static boolean OPT_USE_IO_TEMP_FILE = false;
+    public static long OPT_IO_TEMP_FILE_THRESHOLD = 0;
     public static boolean OPT_APPEND = false;
+    public static int OPT_BUFFER_SIZE = 0xFFFF;
+    public static int MIN_BUFFER_SIZE = 0xFF;
+    public static boolean OPT_ZERO_COPY = false;
+    public static boolean OPT_VARINT = false;
+    public static boolean OPT_DEDUPE_STRINGS = false;
+    public static boolean OPT_TRACK_REFS = false;
+    public static boolean OPT_MAP_SHAPES = false;
+    public static boolean OPT_COLUMNAR = false;
+    public static boolean OPT_KEEP_COLUMNS = false;
+    public static boolean OPT_PACK_NUMBERS = false;
+    public static boolean OPT_DELTA = false;
+    public static boolean OPT_FRAMED = false;
+    public static byte OPT_FRAME_CODEC = FRAME_CODEC_LZ;
+    public static int OPT_FRAME_SIZE = 0x10000;
+    public static boolean OPT_FRAME_CHECKSUM = false;
+    public static boolean OPT_FRAME_ALIGNED = false;
 
     public static int OPT_UNCOUNTABLE_MAX_ITEMS = Integer.MAX_VALUE;
     public static boolean OPT_ENCODE_UNSUPPORTED = true;
@@ -7,21 +7,35 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.*;
 import java.util.*;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     private Header header = null;
-    private final DataInputStream inputStream;
+    private final InputStream inputStream;
+    private final ByteBuffer buf;
     private final MultiFn mmDecode;
     private final EOF EOF;
     private final Options options;
+    private boolean varint = false;
+    private boolean compact = false;
+    private Object[] stringRing = null;
+    private int stringNext = 0;
+    private byte[] scratch = new byte[0xFF];
+    private ArrayList<Object> objectRefs = null;
+    private int pendingRef = -1;
+    private ArrayList<Object[]> mapShapes = null;
+    // Built on the first keyword/symbol, so plain data pays nothing
+    private KeywordCache keywordCache = null;
+    private KeywordCache symbolCache = null;
 
     @SuppressWarnings("unused")
     public static Decoder create(final MultiFn mmDecode, final InputStream inputStream) {
@@ -29,15 +43,45 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public static Decoder create(final MultiFn mmDecode, final InputStream inputStream, final Options options) {
-        final Decoder decoder = new Decoder(mmDecode, inputStream, options);
+        final ByteBuffer buf = ByteBuffer.allocate(Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)).limit(0);
+        final Decoder decoder = new Decoder(mmDecode, FrameInputStream.detect(inputStream), buf, options);
         return decoder.initHeader();
     }
 
-    private Decoder(final MultiFn mmDecode, final InputStream inputStream, final Options options) {
+    // Decode a heap, direct or memory-mapped buffer with no stream involved
+    @SuppressWarnings("unused")
+    public static Decoder create(final MultiFn mmDecode, final ByteBuffer buf, final Options options) {
+        final ByteBuffer source = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (source.remaining() >= 4 && source.getInt(source.position()) == Const.FRAME_MAGIC) {
+            return create(mmDecode, new FrameInputStream(IOTool.byteBufferInputStream(source)), options);
+        }
+        final Decoder decoder = new Decoder(mmDecode, null, source, options);
+        return decoder.initHeader();
+    }
+
+    // Decode a part of data which has no header of its own
+    public static Decoder create(final MultiFn mmDecode, final ByteBuffer buf, final Options options, final Header header) {
+        final Decoder decoder = new Decoder(mmDecode, null, buf.duplicate().order(ByteOrder.BIG_ENDIAN), options);
+        decoder.header = decoder.applyHeader(header);
+        return decoder;
+    }
+
+    @SuppressWarnings("unused")
+    public static Decoder create(final MultiFn mmDecode, final byte[] bytes, final Options options) {
+        return create(mmDecode, ByteBuffer.wrap(bytes), options);
+    }
+
+    @SuppressWarnings("unused")
+    public static Decoder create(final MultiFn mmDecode, final File file, final Options options) {
+        return create(mmDecode, IOTool.mapFile(file), options);
+    }
+
+    private Decoder(final MultiFn mmDecode, final InputStream inputStream, final ByteBuffer buf, final Options options) {
         this.EOF = new EOF();
         this.options = options;
         this.mmDecode = mmDecode;
-        this.inputStream = new DataInputStream(inputStream);
+        this.inputStream = inputStream;
+        this.buf = buf;
     }
 
     @SuppressWarnings("unused")
@@ -45,11 +89,81 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return this.header.version();
     }
 
-    private void skipBytes(final int n) {
+    @SuppressWarnings("unused")
+    public Header header() {
+        return this.header;
+    }
+
+    // Try to have at least n bytes in the buffer; false means EOF
+    private boolean fill(final int n) {
+        if (inputStream == null) {
+            return buf.remaining() >= n;
+        }
+        buf.compact();
+        int r;
         try {
-            inputStream.skipNBytes(n);
+            while (buf.position() < n) {
+                r = inputStream.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (r == -1) {
+                    break;
+                }
+                buf.position(buf.position() + r);
+            }
         } catch (IOException e) {
-            throw Err.error(e, "could not skip N bytes, n: %s", n);
+            throw Err.error(e, "could not read from the stream");
+        } finally {
+            buf.flip();
+        }
+        return buf.remaining() >= n;
+    }
+
+    // n must not exceed Const.MIN_BUFFER_SIZE
+    private void ensure(final int n) {
+        if (buf.remaining() < n && !fill(n)) {
+            throw Err.error("unexpected end of stream, expected bytes: %s, available: %s",
+                    n, buf.remaining()
+            );
+        }
+    }
+
+    private byte[] readNBytes(final int len) {
+        final byte[] bytes = new byte[len];
+        final int head = Math.min(len, buf.remaining());
+        buf.get(bytes, 0, head);
+        final int tail = len - head;
+        if (tail == 0) {
+            return bytes;
+        } else if (tail <= buf.capacity() || inputStream == null) {
+            ensure(tail);
+            buf.get(bytes, head, tail);
+        } else {
+            final int r;
+            try {
+                r = inputStream.readNBytes(bytes, head, tail);
+            } catch (IOException e) {
+                throw Err.error(e, "could not read N bytes, n: %s", len);
+            }
+            if (r < tail) {
+                throw Err.error("unexpected end of stream, expected bytes: %s, available: %s",
+                        len, head + r
+                );
+            }
+        }
+        return bytes;
+    }
+
+    private void skipBytes(final int n) {
+        final int head = Math.min(n, buf.remaining());
+        buf.position(buf.position() + head);
+        if (head < n) {
+            if (inputStream == null) {
+                throw Err.error("unexpected end of buffer, cannot skip N bytes, n: %s", n);
+            }
+            try {
+                inputStream.skipNBytes(n - head);
+            } catch (IOException e) {
+                throw Err.error(e, "could not skip N bytes, n: %s", n);
+            }
         }
     }
 
@@ -64,100 +178,327 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public short readShort() {
-        try {
-            return inputStream.readShort();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read short");
-        }
+        ensure(2);
+        return buf.getShort();
     }
 
     public long readLong() {
-        try {
-            return inputStream.readLong();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read long");
-        }
+        ensure(8);
+        return buf.getLong();
     }
 
     public int readInteger() {
-        try {
-            return inputStream.readInt();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read integer");
+        ensure(4);
+        return buf.getInt();
+    }
+
+    private long readUVarLong() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            ensure(1);
+            final byte b = buf.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
         }
+        throw Err.error("malformed varint");
     }
 
-    public boolean readBoolean() {
-        try {
-            return inputStream.readBoolean();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read boolean");
+    public int readVarInt() {
+        final int zz = (int) readUVarLong();
+        return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    public long readVarLong() {
+        final long zz = readUVarLong();
+        return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    // Mirrors Encoder.writeDeltaLongs
+    public void readDeltaLongs(final long[] array, final int len) {
+        if (len == 0) {
+            return;
+        }
+        array[0] = readVarLong();
+        int i = 1;
+        while (i < len) {
+            final long run = readUVarLong();
+            final long delta = readVarLong();
+            if (run <= 0 || run > len - i) {
+                throw Err.error("wrong delta run: %s, index: %s, length: %s", run, i, len);
+            }
+            for (long k = 0; k < run; k++, i++) {
+                array[i] = array[i - 1] + delta;
+            }
         }
     }
 
-    public double readDouble() {
-        try {
-            return inputStream.readDouble();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read double");
+    public int readLength() {
+        if (varint) {
+            return (int) readUVarLong();
+        } else {
+            return readInteger();
         }
     }
 
+    public boolean readBoolean() {
+        ensure(1);
+        return buf.get() != 0;
+    }
+
+    public double readDouble() {
+        ensure(8);
+        return buf.getDouble();
+    }
+
     public float readFloat() {
-        try {
-            return inputStream.readFloat();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read float");
+        ensure(4);
+        return buf.getFloat();
+    }
+
+    // Mutable containers bind themselves before reading their
+    // content, so references to them inside the content resolve
+    private <T> T bindRef(final T x) {
+        if (pendingRef >= 0) {
+            objectRefs.set(pendingRef, x);
+            pendingRef = -1;
+        }
+        return x;
+    }
+
+    public Object readObjectRefNew() {
+        if (objectRefs == null) {
+            objectRefs = new ArrayList<>();
+        }
+        final int slot = objectRefs.size();
+        objectRefs.add(null);
+        final int outer = pendingRef;
+        pendingRef = slot;
+        final Object x = decode();
+        pendingRef = outer;
+        objectRefs.set(slot, x);
+        return x;
+    }
+
+    public Object readObjectRef() {
+        final int id = readLength();
+        final Object x = objectRefs == null || id < 0 || id >= objectRefs.size() ? null : objectRefs.get(id);
+        if (x == null) {
+            throw Err.error("unresolved object reference: %s", id);
         }
+        return x;
     }
 
     public Atom readAtom() {
-        final Object content = decode();
-        return new Atom(content);
+        final Atom atom = bindRef(new Atom(null));
+        atom.reset(decode());
+        return atom;
     }
 
+    // Bound before its content like atoms; a ref changes only in a transaction
     public Ref readRef() {
+        final Ref ref = bindRef(new Ref(null));
         final Object content = decode();
-        return new Ref(content);
+        try {
+            LockingTransaction.runInTransaction(() -> ref.set(content));
+        } catch (Exception e) {
+            throw Err.error(e, "could not set the ref");
+        }
+        return ref;
     }
 
     public String readString() {
-        final int len = readInteger();
-        try {
-            final byte[] buf = inputStream.readNBytes(len);
-            return new String(buf, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw Err.error(e, "could not read N bytes, n: %s", len);
+        return readString(readLength());
+    }
+
+    // Built from the buffer region when possible. Direct buffers
+    // (e.g. mapped files) go through a reusable scratch array.
+    private String readString(final int len) {
+        if (len <= buf.remaining() || (len <= buf.capacity() && fill(len))) {
+            final String s;
+            if (buf.hasArray()) {
+                s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+                buf.position(buf.position() + len);
+            } else if (len <= Const.STRING_SCRATCH_MAX_SIZE) {
+                if (scratch.length < len) {
+                    scratch = new byte[Math.max(len, scratch.length * 2)];
+                }
+                buf.get(scratch, 0, len);
+                s = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            } else {
+                s = new String(readNBytes(len), StandardCharsets.UTF_8);
+            }
+            return s;
+        } else {
+            return new String(readNBytes(len), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Mirrors Encoder.writeStringRef
+    private <T> T rememberString(final T x) {
+        if (stringRing != null) {
+            stringRing[stringNext] = x;
+            stringNext = (stringNext + 1) % stringRing.length;
+        }
+        return x;
+    }
+
+    public Object readStringRef() {
+        final int index = readLength();
+        if (stringRing == null || index < 0 || index >= stringRing.length || stringRing[index] == null) {
+            throw Err.error("wrong string reference: %s", index);
+        }
+        return stringRing[index];
+    }
+
+    // Short names are looked up by their bytes right in the buffer
+    private Object readInterned(final KeywordCache cache, final Function<String, Object> intern) {
+        final int len = readLength();
+        if (len <= Const.KEYWORD_CACHE_MAX_LENGTH && (len <= buf.remaining() || fill(len))) {
+            return cache.intern(buf, len);
+        } else {
+            return intern.apply(readString(len));
         }
     }
 
     public Keyword readKeyword() {
-        final String payload = readString();
-        return Keyword.intern(payload);
+        if (keywordCache == null) {
+            keywordCache = KeywordCache.of(Const.KEYWORD_CACHE_SIZE, Keyword::intern);
+        }
+        return rememberString((Keyword) readInterned(keywordCache, Keyword::intern));
     }
 
     public Symbol readSymbol() {
-        final String payload = readString();
-        return Symbol.intern(payload);
+        if (symbolCache == null) {
+            symbolCache = KeywordCache.of(Const.KEYWORD_CACHE_SIZE, Symbol::intern);
+        }
+        return rememberString((Symbol) readInterned(symbolCache, Symbol::intern));
+    }
+
+    public String readStringValue() {
+        final String s = readString();
+        if (s.length() <= Const.STRING_REF_MAX_LENGTH) {
+            rememberString(s);
+        }
+        return s;
     }
 
     public byte[] readBytes() {
-        final int size = readInteger();
+        final int size = readLength();
         if (size > 0) {
-            try {
-                return inputStream.readNBytes(size);
-            } catch (IOException e) {
-                throw Err.error(e, "could not read N bytes, n: %s", size);
-            }
+            return readNBytes(size);
         }
         return new byte[0];
     }
 
+    // A read-only view on the source when possible, a copy otherwise
+    public ByteBuffer readByteSlice() {
+        final int size = readLength();
+        if (inputStream == null) {
+            ensure(size);
+            final ByteBuffer slice = buf.slice(buf.position(), size).asReadOnlyBuffer();
+            buf.position(buf.position() + size);
+            return slice;
+        } else {
+            return ByteBuffer.wrap(readNBytes(size)).asReadOnlyBuffer();
+        }
+    }
+
     public byte readByte() {
-        try {
-            return inputStream.readByte();
-        } catch (IOException e) {
-            throw Err.error("cannot read byte");
+        ensure(1);
+        return buf.get();
+    }
+
+    public void readInts(final int[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(4);
+            n = Math.min(end - i, buf.remaining() >> 2);
+            buf.asIntBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 2));
+            i += n;
+        }
+    }
+
+    public void readShorts(final short[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(2);
+            n = Math.min(end - i, buf.remaining() >> 1);
+            buf.asShortBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 1));
+            i += n;
+        }
+    }
+
+    public void readLongs(final long[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(8);
+            n = Math.min(end - i, buf.remaining() >> 3);
+            buf.asLongBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 3));
+            i += n;
+        }
+    }
+
+    public void readFloats(final float[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(4);
+            n = Math.min(end - i, buf.remaining() >> 2);
+            buf.asFloatBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 2));
+            i += n;
+        }
+    }
+
+    public void readDoubles(final double[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(8);
+            n = Math.min(end - i, buf.remaining() >> 3);
+            buf.asDoubleBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 3));
+            i += n;
+        }
+    }
+
+    public void readChars(final char[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(2);
+            n = Math.min(end - i, buf.remaining() >> 1);
+            buf.asCharBuffer().get(array, i, n);
+            buf.position(buf.position() + (n << 1));
+            i += n;
+        }
+    }
+
+    public void readBooleans(final boolean[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(1);
+            n = Math.min(end - i, buf.remaining());
+            for (int j = 0; j < n; j++) {
+                array[i + j] = buf.get() != 0;
+            }
+            i += n;
         }
     }
 
@@ -186,7 +527,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     public IPersistentMap readClojureMap() {
         Object key;
         Object val;
-        final int len = readInteger();
+        final int len = readLength();
         ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             key = decode();
@@ -198,7 +539,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public IPersistentCollection readClojureSet() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         ITransientCollection s = PersistentHashSet.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -210,7 +551,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     public IPersistentCollection readClojureSortedSet() {
         Object x;
         IPersistentCollection s = PersistentTreeSet.EMPTY;
-        final int len = readInteger();
+        final int len = readLength();
         for (int i = 0; i < len; i++) {
             x = decode();
             s.cons(x);
@@ -223,7 +564,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         Object key;
         Object val;
         PersistentTreeMap m = PersistentTreeMap.EMPTY;
-        final int len = readInteger();
+        final int len = readLength();
         for (int i = 0; i < len; i++) {
             key = decode();
             val = decode();
@@ -237,7 +578,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         Object x;
         ITransientCollection v = PersistentVector.EMPTY.asTransient();
         while (true) {
-            limit = readInteger();
+            limit = readLength();
             if (limit == 0) {
                 break;
             } else {
@@ -253,9 +594,9 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     public ArrayList<?> readChunkedList() {
         int limit;
         Object x;
-        final ArrayList<Object> list = new ArrayList<>();
+        final ArrayList<Object> list = bindRef(new ArrayList<>());
         while (true) {
-            limit = readInteger();
+            limit = readLength();
             if (limit == 0) {
                 break;
             } else {
@@ -270,8 +611,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public List<?> readJavaList() {
         Object x;
-        final int len = readInteger();
-        final ArrayList<Object> list = new ArrayList<>(len);
+        final int len = readLength();
+        final ArrayList<Object> list = bindRef(new ArrayList<>(len));
         for (int i = 0; i < len; i++) {
             x = decode();
             list.add(x);
@@ -281,8 +622,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public Vector<?> readJavaVector() {
         Object x;
-        final int len = readInteger();
-        final Vector<Object> vector = new Vector<>(len);
+        final int len = readLength();
+        final Vector<Object> vector = bindRef(new Vector<>(len));
         for (int i = 0; i < len; i++) {
             x = decode();
             vector.add(x);
@@ -292,7 +633,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public ITransientCollection readTransientVector() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         ITransientCollection v = PersistentVector.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -307,7 +648,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public PersistentQueue readClojureQueue() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         PersistentQueue q = PersistentQueue.EMPTY;
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -319,8 +660,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     public Map<?,?> readJavaMap() {
         Object key;
         Object val;
-        final int len = readInteger();
-        HashMap<Object, Object> m = new HashMap<>(len);
+        final int len = readLength();
+        final HashMap<Object, Object> m = bindRef(new HashMap<>(len));
         for (int i = 0; i < len; i++) {
             key = decode();
             val = decode();
@@ -329,6 +670,183 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return m;
     }
 
+    private IPersistentMap readShapedValues(final Object[] keys) {
+        final Object[] kvs = new Object[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            kvs[i * 2] = keys[i];
+            kvs[i * 2 + 1] = decode();
+        }
+        return new PersistentArrayMap(kvs);
+    }
+
+    public IPersistentMap readMapShape() {
+        final int len = readLength();
+        final Object[] keys = new Object[len];
+        for (int i = 0; i < len; i++) {
+            keys[i] = decode();
+        }
+        if (mapShapes == null) {
+            mapShapes = new ArrayList<>();
+        }
+        mapShapes.add(keys);
+        return readShapedValues(keys);
+    }
+
+    public IPersistentMap readMapShaped() {
+        final int id = readLength();
+        if (mapShapes == null || id < 0 || id >= mapShapes.size()) {
+            throw Err.error("unknown map shape: %s", id);
+        }
+        return readShapedValues(mapShapes.get(id));
+    }
+
+    private Object readColumn(final int rows) {
+        final byte kind = readByte();
+        if (kind == Const.COLUMN_LONGS) {
+            final long[] array = new long[rows];
+            readLongs(array, 0, rows);
+            return array;
+        } else if (kind == Const.COLUMN_DOUBLES) {
+            final double[] array = new double[rows];
+            readDoubles(array, 0, rows);
+            return array;
+        } else if (kind == Const.COLUMN_STRINGS) {
+            final String[] values = new String[readLength()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString();
+            }
+            final int[] codes = new int[rows];
+            readInts(codes, 0, rows);
+            final Object[] array = new Object[rows];
+            for (int i = 0; i < rows; i++) {
+                array[i] = values[codes[i]];
+            }
+            return array;
+        } else if (kind == Const.COLUMN_OBJECTS) {
+            final Object[] array = new Object[rows];
+            for (int i = 0; i < rows; i++) {
+                array[i] = decode();
+            }
+            return array;
+        } else {
+            throw Err.error("unknown column kind: %s", kind);
+        }
+    }
+
+    public IPersistentVector readPackedLongs() {
+        final int len = readLength();
+        final Object[] items = new Object[len];
+        if (varint) {
+            for (int i = 0; i < len; i++) {
+                items[i] = readVarLong();
+            }
+        } else {
+            final long[] array = new long[len];
+            readLongs(array, 0, len);
+            for (int i = 0; i < len; i++) {
+                items[i] = array[i];
+            }
+        }
+        return LazilyPersistentVector.createOwning(items);
+    }
+
+    public long[] readLongArrayDelta() {
+        final int len = readLength();
+        final long[] array = new long[len];
+        readDeltaLongs(array, len);
+        return array;
+    }
+
+    public IPersistentVector readPackedLongsDelta() {
+        final long[] array = readLongArrayDelta();
+        final Object[] items = new Object[array.length];
+        for (int i = 0; i < array.length; i++) {
+            items[i] = array[i];
+        }
+        return LazilyPersistentVector.createOwning(items);
+    }
+
+    public IPersistentVector readInstantVector() {
+        final int len = readLength();
+        final long[] secs = new long[len];
+        final long[] nanos = new long[len];
+        readDeltaLongs(secs, len);
+        readDeltaLongs(nanos, len);
+        final Object[] items = new Object[len];
+        for (int i = 0; i < len; i++) {
+            items[i] = Instant.ofEpochSecond(secs[i], nanos[i]);
+        }
+        return LazilyPersistentVector.createOwning(items);
+    }
+
+    public IPersistentVector readDateVector() {
+        final long[] millis = readLongArrayDelta();
+        final Object[] items = new Object[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            items[i] = new Date(millis[i]);
+        }
+        return LazilyPersistentVector.createOwning(items);
+    }
+
+    public IPersistentVector readPackedDoubles() {
+        final int len = readLength();
+        final double[] array = new double[len];
+        readDoubles(array, 0, len);
+        final Object[] items = new Object[len];
+        for (int i = 0; i < len; i++) {
+            items[i] = array[i];
+        }
+        return LazilyPersistentVector.createOwning(items);
+    }
+
+    private static IPersistentMap createMap(final Object[] kvs) {
+        if (kvs.length <= Const.MAP_SHAPE_MAX_KEYS * 2) {
+            return new PersistentArrayMap(kvs);
+        } else {
+            return PersistentHashMap.create(kvs);
+        }
+    }
+
+    // Either a vector of maps or, with the keepColumns option, a map
+    // of keys to columns: long[] or double[] arrays, or vectors
+    public Object readColumns() {
+        final int rows = readLength();
+        final int cols = readLength();
+        final Object[] keys = new Object[cols];
+        final Object[] columns = new Object[cols];
+        for (int c = 0; c < cols; c++) {
+            keys[c] = decode();
+            columns[c] = readColumn(rows);
+        }
+        if (options.keepColumns()) {
+            final Object[] kvs = new Object[cols * 2];
+            for (int c = 0; c < cols; c++) {
+                kvs[c * 2] = keys[c];
+                kvs[c * 2 + 1] = columns[c] instanceof Object[] array
+                        ? LazilyPersistentVector.createOwning(array)
+                        : columns[c];
+            }
+            return createMap(kvs);
+        }
+        final Object[] result = new Object[rows];
+        for (int r = 0; r < rows; r++) {
+            final Object[] kvs = new Object[cols * 2];
+            for (int c = 0; c < cols; c++) {
+                final Object column = columns[c];
+                kvs[c * 2] = keys[c];
+                if (column instanceof long[] array) {
+                    kvs[c * 2 + 1] = array[r];
+                } else if (column instanceof double[] array) {
+                    kvs[c * 2 + 1] = array[r];
+                } else {
+                    kvs[c * 2 + 1] = ((Object[]) column)[r];
+                }
+            }
+            result[r] = createMap(kvs);
+        }
+        return LazilyPersistentVector.createOwning(result);
+    }
+
     public Pattern readRegex() {
         final String payload = readString();
         return Pattern.compile(payload);
@@ -349,11 +867,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public char readCharacter() {
-        try {
-            return inputStream.readChar();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read character");
-        }
+        ensure(2);
+        return buf.getChar();
     }
 
     public UUID readUUID() {
@@ -363,8 +878,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public Object[] readObjectArray() {
-        final int len = readInteger();
-        final Object[] array = new Object[len];
+        final int len = readLength();
+        final Object[] array = bindRef(new Object[len]);
         for (int i = 0; i < len; i++) {
             array[i] = decode();
         }
@@ -372,65 +887,51 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public int[] readIntArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final int[] array = new int[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readInteger();
-        }
+        readInts(array, 0, len);
         return array;
     }
 
     public short[] readShortArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final short[] array = new short[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readShort();
-        }
+        readShorts(array, 0, len);
         return array;
     }
 
     public boolean[] readBoolArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final boolean[] array = new boolean[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readBoolean();
-        }
+        readBooleans(array, 0, len);
         return array;
     }
 
     public float[] readFloatArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final float[] array = new float[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readFloat();
-        }
+        readFloats(array, 0, len);
         return array;
     }
 
     public double[] readDoubleArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final double[] array = new double[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readDouble();
-        }
+        readDoubles(array, 0, len);
         return array;
     }
 
     public long[] readLongArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final long[] array = new long[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readLong();
-        }
+        readLongs(array, 0, len);
         return array;
     }
 
     public char[] readCharArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final char[] array = new char[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readCharacter();
-        }
+        readChars(array, 0, len);
         return array;
     }
 
@@ -587,7 +1088,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         if (hasMessage) {
             message = readString();
         }
-        final int traceLen = readInteger();
+        final int traceLen = readLength();
         final StackTraceElement[] trace = new StackTraceElement[traceLen];
         for (int i = 0; i < traceLen; i++) {
             trace[i] = readStackTraceElement();
@@ -597,7 +1098,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         if (hasCause) {
             cause = decodeThrowable();
         }
-        final int suppressedLen = readInteger();
+        final int suppressedLen = readLength();
         final Throwable[] suppressed = new Throwable[suppressedLen];
         for (int i = 0; i < suppressedLen; i++) {
             suppressed[i] = decodeThrowable();
@@ -646,57 +1147,102 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         }
     }
 
+    // A header met in the middle of the stream (e.g. after appending)
+    // switches the format of the data that follows it
     public Header readHeader() {
         final short version = readShort();
+        final int flags = readInteger();
         skipBytes(Const.HEADER_GAP);
-        return Header.of(version);
+        return applyHeader(Header.read(version, flags));
     }
 
-    public InputStream readInputStream() {
-        final boolean useFile = options.ioUseTempFile();
-        byte[] bytes;
-        OutputStream out;
-        if (useFile) {
-            out = FileOutStream.ofTemp();
+    private Header applyHeader(final Header header) {
+        this.varint = header.varint();
+        this.compact = header.version() >= Const.HEADER_VERSION_COMPACT;
+        this.stringRing = header.dedupeStrings() ? new Object[Const.STRING_REF_TABLE_SIZE] : null;
+        this.stringNext = 0;
+        this.objectRefs = null;
+        this.pendingRef = -1;
+        this.mapShapes = null;
+        return header;
+    }
+
+    private SpillBuffer spillBuffer() {
+        if (options.ioUseTempFile()) {
+            return SpillBuffer.withThreshold(options.ioTempFileThreshold());
         } else {
-            out = new ByteArrayOutputStream();
+            return SpillBuffer.inMemory();
         }
-        try (final OutputStream o = out) {
-            while (true) {
-                bytes = readBytes();
-                if (bytes.length == 0) {
-                    break;
-                } else {
-                    o.write(bytes);
-                }
+    }
+
+    // Moves n bytes into the spill buffer without intermediate arrays
+    private void readInto(final SpillBuffer spill, final long n) {
+        long left = n;
+        while (left > 0) {
+            if (!buf.hasRemaining() && !fill(1)) {
+                throw Err.error("unexpected end of stream, expected bytes: %s, missing: %s", n, left);
             }
-        } catch (IOException e) {
-            throw Err.error(e, "couldn't write to the output stream");
+            final int len = (int) Math.min(left, buf.remaining());
+            spill.write(buf.slice(buf.position(), len));
+            buf.position(buf.position() + len);
+            left -= len;
         }
-        if (out instanceof ByteArrayOutputStream ba) {
-            return IOTool.byteArrayInputStream(ba);
-        } else {
-            FileOutStream fo = (FileOutStream) out;
-            return IOTool.fileInputStream(fo.file());
+    }
+
+    public InputStream readInputStream() {
+        try (final SpillBuffer spill = spillBuffer()) {
+            int len;
+            while ((len = readLength()) != 0) {
+                readInto(spill, len);
+            }
+            return spill.toInputStream();
+        }
+    }
+
+    // The content of a file: in memory or in a temp file
+    public InputStream readFile() {
+        final long size = readLong();
+        try (final SpillBuffer spill = spillBuffer()) {
+            readInto(spill, size);
+            return spill.toInputStream();
         }
     }
 
     public ByteBuffer readByteBuffer() {
-        final int position = readInteger();
-        final int limit = readInteger();
-        final byte[] bytes = readBytes();
-        return ByteBuffer.wrap(bytes).position(position).limit(limit);
+        final int position = readLength();
+        final int limit = readLength();
+        final ByteBuffer bb = options.zeroCopy() ? readByteSlice() : ByteBuffer.wrap(readBytes());
+        return bb.position(position).limit(limit);
+    }
+
+    // A tag of 0x00 is the first byte of a two-byte OID
+    // below 0x0100, e.g. a header written by any version
+    private short readCompactOID() {
+        final int tag = buf.get() & 0xFF;
+        if (tag == 0) {
+            return (short) (readByte() & 0xFF);
+        } else if (tag == (Const.OID_ESCAPE & 0xFF)) {
+            return readShort();
+        } else {
+            return (short) (tag - 1);
+        }
     }
 
     public Object decode() {
-        short oid;
-
-        try {
-            oid = inputStream.readShort();
-        } catch (EOFException e) {
-            return EOF;
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read short");
+        final short oid;
+        if (compact) {
+            if (!buf.hasRemaining() && !fill(1)) {
+                return EOF;
+            }
+            oid = readCompactOID();
+        } else {
+            if (buf.remaining() < 2 && !fill(2)) {
+                if (buf.hasRemaining()) {
+                    throw Err.error("unexpected end of stream, cannot read OID");
+                }
+                return EOF;
+            }
+            oid = buf.getShort();
         }
 
         return switch (oid) {
@@ -705,6 +1251,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.META -> readMetadata();
             case OID.UNSUPPORTED -> readUnsupported();
             case OID.IO_INPUT_STREAM -> readInputStream();
+            case OID.IO_FILE -> readFile();
             case OID.EX_NPE -> readNullPointerException();
             case OID.IO_EXCEPTION -> readIOException();
             case OID.EXCEPTION -> readException();
@@ -759,11 +1306,11 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.SHORT_MINUS_ONE -> (short)-1;
             case OID.SHORT_ZERO -> (short)0;
             case OID.SHORT -> readShort();
-            case OID.INT -> readInteger();
+            case OID.INT -> varint ? readVarInt() : readInteger();
             case OID.INT_ONE -> 1;
             case OID.INT_ZERO -> 0;
             case OID.INT_MINUS_ONE -> -1;
-            case OID.LONG -> readLong();
+            case OID.LONG -> varint ? readVarLong() : readLong();
             case OID.LONG_ONE -> (long)1;
             case OID.LONG_MINUS_ONE -> (long)-1;
             case OID.LONG_ZERO -> (long)0;
@@ -773,7 +1320,19 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.FLOAT_ZERO -> (float)0;
             case OID.CLJ_ATOM -> readAtom();
             case OID.CLJ_REF -> readRef();
-            case OID.STRING -> readString();
+            case OID.STRING -> readStringValue();
+            case OID.STRING_REF -> readStringRef();
+            case OID.OBJ_REF_NEW -> readObjectRefNew();
+            case OID.OBJ_REF -> readObjectRef();
+            case OID.CLJ_MAP_SHAPE -> readMapShape();
+            case OID.CLJ_MAP_SHAPED -> readMapShaped();
+            case OID.CLJ_VEC_COLUMNS -> readColumns();
+            case OID.CLJ_VEC_LONGS -> readPackedLongs();
+            case OID.CLJ_VEC_DOUBLES -> readPackedDoubles();
+            case OID.ARR_LONG_DELTA -> readLongArrayDelta();
+            case OID.CLJ_VEC_LONGS_DELTA -> readPackedLongsDelta();
+            case OID.CLJ_VEC_INSTANTS -> readInstantVector();
+            case OID.CLJ_VEC_DATES -> readDateVector();
             case OID.STRING_EMPTY -> "";
             case OID.CHAR -> readCharacter();
             case OID.URL -> readURL();
@@ -791,7 +1350,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.BYTE_MINUS_ONE -> Const.BYTE_MINUS_ONE;
             case OID.BYTE_ZERO -> Const.BYTE_ZERO;
             case OID.BYTE_ONE -> Const.BYTE_ONE;
-            case OID.ARR_BYTE -> readBytes();
+            case OID.ARR_BYTE -> options.zeroCopy() ? readByteSlice() : readBytes();
             case OID.ARR_OBJ -> readObjectArray();
             case OID.ARR_INT -> readIntArray();
             case OID.ARR_SHORT -> readShortArray();
@@ -849,10 +1408,12 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     @Override
     public void close() {
-        try {
-            inputStream.close();
-        } catch (IOException e) {
-            throw Err.error(e, "could not close the stream");
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                throw Err.error(e, "could not close the stream");
+            }
         }
     }
 }
@@ -6,6 +6,12 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.*;
 import java.time.temporal.ChronoField;
 import java.util.*;
@@ -13,18 +19,40 @@ import java.net.URL;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 public final class Encoder implements AutoCloseable {
 
     private final Header header;
-    private final DataOutputStream outputStream;
+    private final OutputStream outputStream;
+    private final WritableByteChannel channel;
+    private ByteBuffer buf;
     private final Options options;
     private final IFn protoEncode;
+    private final boolean varint;
+    private final boolean compact;
+    private final Map<Object, Integer> stringRefs;
+    private final Object[] stringRing;
+    private int stringNext = 0;
+    private final IdentityHashMap<Object, Integer> objectRefs;
+    private final HashMap<MapShape, Integer> mapShapes;
+    private final MapShape shapeProbe;
+    private final Object[] shapeKeys;
+    private final FrameOutputStream frame;
+    private final boolean aligned;
+    private int depth = 0;
+    // where the data starts in a caller's buffer
+    private final int start;
+    // a stream buffer grows up to this size, then it's flushed
+    private final int maxCapacity;
+    private ByteArrayOutputStream memory = null;
 
     @SuppressWarnings("unused")
     public static Encoder create(final IFn protoEncode, final OutputStream outputStream) {
@@ -32,15 +60,107 @@ public final class Encoder implements AutoCloseable {
     }
 
     public static Encoder create(final IFn protoEncode, final OutputStream outputStream, final Options options) {
-        final Encoder encoder = new Encoder(protoEncode, outputStream, options);
+        final ByteBuffer buf = ByteBuffer.allocate(Const.MIN_BUFFER_SIZE);
+        if (FrameOutputStream.enabled(options)) {
+            final Encoder encoder = new Encoder(protoEncode, FrameOutputStream.of(outputStream, options), null, buf, options);
+            return encoder.initHeader();
+        }
+        final WritableByteChannel channel = outputStream instanceof FileOutputStream fo ? fo.getChannel() : null;
+        final Encoder encoder = new Encoder(protoEncode, outputStream, channel, buf, options);
+        return encoder.initHeader();
+    }
+
+    // Files are sent to a channel with FileChannel.transferTo
+    @SuppressWarnings("unused")
+    public static Encoder create(final IFn protoEncode, final WritableByteChannel channel, final Options options) {
+        if (FrameOutputStream.enabled(options)) {
+            return create(protoEncode, Channels.newOutputStream(channel), options);
+        }
+        final OutputStream outputStream = Channels.newOutputStream(channel);
+        final ByteBuffer buf = ByteBuffer.allocate(Const.MIN_BUFFER_SIZE);
+        final Encoder encoder = new Encoder(protoEncode, outputStream, channel, buf, options);
+        return encoder.initHeader();
+    }
+
+    // Encode into memory: the buffer starts small and grows instead
+    // of being flushed. When framed, the blocks are collected in
+    // a byte array stream.
+    @SuppressWarnings("unused")
+    public static Encoder create(final IFn protoEncode, final Options options) {
+        if (FrameOutputStream.enabled(options)) {
+            final ByteBuffer buf = ByteBuffer.allocate(Const.MIN_BUFFER_SIZE);
+            final ByteArrayOutputStream memory = new ByteArrayOutputStream(Const.MIN_BUFFER_SIZE);
+            final Encoder encoder = new Encoder(protoEncode, FrameOutputStream.of(memory, options), null, buf, options);
+            encoder.memory = memory;
+            return encoder.initHeader();
+        }
+        final Encoder encoder = new Encoder(protoEncode, null, null, ByteBuffer.allocate(Const.MIN_BUFFER_SIZE), options);
+        return encoder.initHeader();
+    }
+
+    // Encode into a heap or direct buffer starting from its position
+    @SuppressWarnings("unused")
+    public static Encoder create(final IFn protoEncode, final ByteBuffer buf, final Options options) {
+        if (FrameOutputStream.enabled(options)) {
+            throw Err.error("the frame option cannot be used when writing into a buffer");
+        }
+        final Encoder encoder = new Encoder(protoEncode, null, null, buf.order(ByteOrder.BIG_ENDIAN), options);
         return encoder.initHeader();
     }
 
-    private Encoder(final IFn protoEncode, final OutputStream outputStream, final Options options) {
-        this.header = Header.of(Const.HEADER_VERSION);
+    private Encoder(final IFn protoEncode,
+                    final OutputStream outputStream,
+                    final WritableByteChannel channel,
+                    final ByteBuffer buf,
+                    final Options options) {
+        this.header = Header.of(options.version(), Header.flags(options));
         this.protoEncode = protoEncode;
         this.options = options;
-        this.outputStream = new DataOutputStream(outputStream);
+        this.varint = options.varint();
+        this.compact = options.version() >= Const.HEADER_VERSION_COMPACT;
+        if (options.version() < 1 || options.version() > Const.HEADER_VERSION_MAX) {
+            throw Err.error("unsupported version: %s", options.version());
+        }
+        if (options.dedupeStrings()) {
+            if (options.append()) {
+                throw Err.error("the dedupe-strings option cannot be used when appending");
+            }
+            this.stringRefs = new HashMap<>();
+            this.stringRing = new Object[Const.STRING_REF_TABLE_SIZE];
+        } else {
+            this.stringRefs = null;
+            this.stringRing = null;
+        }
+        if (options.trackRefs()) {
+            if (options.append()) {
+                throw Err.error("the track-refs option cannot be used when appending");
+            }
+            this.objectRefs = new IdentityHashMap<>();
+        } else {
+            this.objectRefs = null;
+        }
+        if (options.mapShapes()) {
+            if (options.append()) {
+                throw Err.error("the map-shapes option cannot be used when appending");
+            }
+            this.mapShapes = new HashMap<>();
+            this.shapeKeys = new Object[Const.MAP_SHAPE_MAX_KEYS];
+            this.shapeProbe = new MapShape(shapeKeys, 0);
+        } else {
+            this.mapShapes = null;
+            this.shapeKeys = null;
+            this.shapeProbe = null;
+        }
+        this.outputStream = outputStream;
+        this.channel = channel;
+        this.buf = buf;
+        this.start = buf.position();
+        this.maxCapacity = Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE);
+        this.frame = outputStream instanceof FrameOutputStream fo ? fo : null;
+        this.aligned = frame != null && frame.aligned();
+        if (aligned && (stringRefs != null || objectRefs != null || mapShapes != null)) {
+            throw Err.error("aligned frames cannot be used with dedupe-strings, track-refs or map-shapes");
+        }
     }
 
     private Encoder initHeader() {
@@ -50,111 +170,311 @@ public final class Encoder implements AutoCloseable {
         return this;
     }
 
-    public void writeGap(final int len) {
-        try {
-            outputStream.write(new byte[len]);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write a gap of %s bytes", len);
+    private void flushBuffer() {
+        final int len = buf.position();
+        if (len > 0 && outputStream != null) {
+            try {
+                outputStream.write(buf.array(), buf.arrayOffset(), len);
+            } catch (IOException e) {
+                throw Err.error(e, "could not write %s bytes to the stream", len);
+            }
+            buf.clear();
+        }
+    }
+
+    private void grow(final int n) {
+        int capacity = Math.max(buf.capacity() * 2, buf.position() + n);
+        if (outputStream != null) {
+            capacity = Math.min(capacity, maxCapacity);
         }
+        final ByteBuffer newBuf = buf.isDirect()
+                ? ByteBuffer.allocateDirect(capacity)
+                : ByteBuffer.allocate(capacity);
+        buf = newBuf.put(buf.flip());
+    }
+
+    // n must not exceed maxCapacity unless encoding into memory
+    private void ensure(final int n) {
+        if (buf.remaining() < n) {
+            if (outputStream != null && buf.position() + n > maxCapacity) {
+                flushBuffer();
+            }
+            if (buf.remaining() < n) {
+                grow(n);
+            }
+        }
+    }
+
+    // Large arrays that don't fit the buffer bypass it
+    private void writeRaw(final byte[] bytes, final int off, final int len) {
+        if (len > buf.remaining()) {
+            if (outputStream != null && buf.position() + len > maxCapacity) {
+                flushBuffer();
+            }
+            if (len > buf.remaining() && (outputStream == null || len <= maxCapacity)) {
+                grow(len);
+            }
+        }
+        if (len <= buf.remaining()) {
+            buf.put(bytes, off, len);
+        } else {
+            try {
+                outputStream.write(bytes, off, len);
+            } catch (IOException e) {
+                throw Err.error(e, "could not write bytes, length: %s, off: %s, len: %s",
+                        bytes.length, off, len
+                );
+            }
+        }
+    }
+
+    // Copies the remaining bytes of a heap, direct or read-only buffer
+    // without touching its position
+    public void writeBuffer(final ByteBuffer bb) {
+        final int len = bb.remaining();
+        if (bb.hasArray()) {
+            writeRaw(bb.array(), bb.arrayOffset() + bb.position(), len);
+            return;
+        }
+        if (outputStream == null) {
+            ensure(len);
+            buf.put(bb.duplicate());
+            return;
+        }
+        int pos = bb.position();
+        final int limit = bb.limit();
+        while (pos < limit) {
+            ensure(1);
+            final int n = Math.min(limit - pos, buf.remaining());
+            buf.put(bb.slice(pos, n));
+            pos += n;
+        }
+    }
+
+    public void writeGap(final int len) {
+        writeRaw(new byte[len], 0, len);
     }
 
     public void writeInt(final int i) {
-        try {
-            outputStream.writeInt(i);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write int: %s", i);
+        ensure(4);
+        buf.putInt(i);
+    }
+
+    // Unsigned LEB128
+    private void writeUVarLong(long l) {
+        ensure(10);
+        while ((l & ~0x7FL) != 0) {
+            buf.put((byte) ((l & 0x7F) | 0x80));
+            l >>>= 7;
         }
+        buf.put((byte) l);
+    }
+
+    public void writeVarInt(final int i) {
+        writeUVarLong(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+    }
+
+    public void writeVarLong(final long l) {
+        writeUVarLong((l << 1) ^ (l >> 63));
+    }
+
+    private static long zigzag(final long l) {
+        return (l << 1) ^ (l >> 63);
     }
 
+    private static int varLongSize(final long l) {
+        return l == 0 ? 1 : (70 - Long.numberOfLeadingZeros(l)) / 7;
+    }
+
+    // The size writeDeltaLongs would take
+    private static long deltaSize(final long[] array, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        long size = varLongSize(zigzag(array[0]));
+        int i = 1;
+        while (i < len) {
+            final long delta = array[i] - array[i - 1];
+            int j = i + 1;
+            while (j < len && array[j] - array[j - 1] == delta) {
+                j++;
+            }
+            size += varLongSize(j - i) + varLongSize(zigzag(delta));
+            i = j;
+        }
+        return size;
+    }
+
+    // The first value, then runs of equal deltas as (run length, delta)
+    // pairs of varints. A sequence with a constant step takes a few bytes.
+    public void writeDeltaLongs(final long[] array, final int len) {
+        if (len == 0) {
+            return;
+        }
+        writeVarLong(array[0]);
+        int i = 1;
+        while (i < len) {
+            final long delta = array[i] - array[i - 1];
+            int j = i + 1;
+            while (j < len && array[j] - array[j - 1] == delta) {
+                j++;
+            }
+            writeUVarLong(j - i);
+            writeVarLong(delta);
+            i = j;
+        }
+    }
+
+    // Collection sizes, byte lengths and chunk sizes
+    public void writeLength(final int len) {
+        if (varint) {
+            writeUVarLong(len & 0xFFFFFFFFL);
+        } else {
+            writeInt(len);
+        }
+    }
+
+    // Version 2: built-in OIDs take one byte (OID + 1),
+    // the rest go after the 0xFF escape byte
     public void writeOID(final short oid) {
-        try {
-            outputStream.writeShort(oid);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write OID: %s", oid);
+        if (compact) {
+            if (oid >= 0 && oid <= Const.OID_COMPACT_MAX) {
+                ensure(1);
+                buf.put((byte) (oid + 1));
+            } else {
+                ensure(3);
+                buf.put(Const.OID_ESCAPE);
+                buf.putShort(oid);
+            }
+        } else {
+            ensure(2);
+            buf.putShort(oid);
         }
     }
 
     public void writeShort(final short s) {
-        try {
-            outputStream.writeShort(s);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write short: %s", s);
-        }
+        ensure(2);
+        buf.putShort(s);
     }
 
     public void writeLong(final long l) {
-        try {
-            outputStream.writeLong(l);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write long: %s", l);
-        }
+        ensure(8);
+        buf.putLong(l);
     }
 
     @SuppressWarnings("unused")
     public void writeFloat(final float f) {
-        try {
-            outputStream.writeFloat(f);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write float: %s", f);
-        }
+        ensure(4);
+        buf.putFloat(f);
     }
 
     @SuppressWarnings("unused")
     public void writeDouble(final double d) {
-        try {
-            outputStream.writeDouble(d);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write double: %s", d);
-        }
+        ensure(8);
+        buf.putDouble(d);
     }
 
     public void writeByte(final byte b) {
-        try {
-            outputStream.writeByte(b);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write byte: %s", b);
-        }
+        ensure(1);
+        buf.put(b);
     }
 
     public void writeCharacter(final char c) {
-        try {
-            outputStream.writeChar(c);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write char: %s", c);
-        }
+        ensure(2);
+        buf.putChar(c);
     }
 
     public void writeBytes(final byte[] bytes) {
-        writeInt(bytes.length);
-        try {
-            outputStream.write(bytes);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write bytes, length: %s", bytes.length);
-        }
+        writeLength(bytes.length);
+        writeRaw(bytes, 0, bytes.length);
     }
 
     public void writeBytes(final byte[] bytes, final int off, final int len) {
-        writeInt(len);
-        try {
-            outputStream.write(bytes, off, len);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write bytes, length: %s, off: %s, len: %s",
-                    bytes.length, off, len
-            );
+        writeLength(len);
+        writeRaw(bytes, off, len);
+    }
+
+    // Matches String.getBytes(UTF_8): an unpaired surrogate becomes '?'
+    private static int utf8Length(final String s) {
+        final int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                len += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 2;
+                    i++;
+                }
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    private static int putUTF8(final String s, final int start, final byte[] array, int off) {
+        final int n = s.length();
+        for (int i = start; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                array[off++] = (byte) c;
+            } else if (c < 0x800) {
+                array[off++] = (byte) (0xC0 | (c >> 6));
+                array[off++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    array[off++] = (byte) (0xF0 | (cp >> 18));
+                    array[off++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    array[off++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    array[off++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    array[off++] = '?';
+                }
+            } else {
+                array[off++] = (byte) (0xE0 | (c >> 12));
+                array[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[off++] = (byte) (0x80 | (c & 0x3F));
+            }
         }
+        return off;
     }
 
+    // Chars go straight into the buffer, ASCII runs first.
+    // Strings larger than a stream buffer fall back to getBytes.
     public void writeString(final String s) {
-        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
-        writeBytes(bytes);
+        final int n = s.length();
+        final int len = utf8Length(s);
+        writeLength(len);
+        if (!buf.hasArray() || (outputStream != null && len > maxCapacity)) {
+            writeRaw(s.getBytes(StandardCharsets.UTF_8), 0, len);
+            return;
+        }
+        ensure(len);
+        final byte[] array = buf.array();
+        final int off = buf.arrayOffset() + buf.position();
+        int i = 0;
+        for (; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            array[off + i] = (byte) c;
+        }
+        if (i < n) {
+            putUTF8(s, i, array, off + i);
+        }
+        buf.position(buf.position() + len);
     }
 
     public void writeBoolean(final boolean b) {
-        try {
-            outputStream.writeBoolean(b);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write bool: %s", b);
-        }
+        ensure(1);
+        buf.put(b ? Const.BYTE_ONE : Const.BYTE_ZERO);
     }
 
     public void writeBigInteger(final BigInteger bi) {
@@ -162,6 +482,98 @@ public final class Encoder implements AutoCloseable {
         writeBytes(bytes);
     }
 
+    public void writeInts(final int[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(4);
+            n = Math.min(end - i, buf.remaining() >> 2);
+            buf.asIntBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 2));
+            i += n;
+        }
+    }
+
+    public void writeShorts(final short[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(2);
+            n = Math.min(end - i, buf.remaining() >> 1);
+            buf.asShortBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 1));
+            i += n;
+        }
+    }
+
+    public void writeLongs(final long[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(8);
+            n = Math.min(end - i, buf.remaining() >> 3);
+            buf.asLongBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 3));
+            i += n;
+        }
+    }
+
+    public void writeFloats(final float[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(4);
+            n = Math.min(end - i, buf.remaining() >> 2);
+            buf.asFloatBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 2));
+            i += n;
+        }
+    }
+
+    public void writeDoubles(final double[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(8);
+            n = Math.min(end - i, buf.remaining() >> 3);
+            buf.asDoubleBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 3));
+            i += n;
+        }
+    }
+
+    public void writeChars(final char[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(2);
+            n = Math.min(end - i, buf.remaining() >> 1);
+            buf.asCharBuffer().put(array, i, n);
+            buf.position(buf.position() + (n << 1));
+            i += n;
+        }
+    }
+
+    public void writeBooleans(final boolean[] array, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        int n;
+        while (i < end) {
+            ensure(1);
+            n = Math.min(end - i, buf.remaining());
+            for (int j = 0; j < n; j++) {
+                buf.put(array[i + j] ? Const.BYTE_ONE : Const.BYTE_ZERO);
+            }
+            i += n;
+        }
+    }
+
     @SuppressWarnings("unused")
     public void encodeBoolean(final boolean b) {
         if (b) {
@@ -179,7 +591,11 @@ public final class Encoder implements AutoCloseable {
             case 1 -> writeOID(OID.INT_ONE);
             default -> {
                 writeOID(OID.INT);
-                writeInt(i);
+                if (varint) {
+                    writeVarInt(i);
+                } else {
+                    writeInt(i);
+                }
             }
         }
     }
@@ -194,7 +610,11 @@ public final class Encoder implements AutoCloseable {
             writeOID(OID.LONG_ONE);
         } else {
             writeOID(OID.LONG);
-            writeLong(l);
+            if (varint) {
+                writeVarLong(l);
+            } else {
+                writeLong(l);
+            }
         }
     }
 
@@ -253,24 +673,43 @@ public final class Encoder implements AutoCloseable {
     }
 
     private void encodeChunk(final Object[] chunk) {
-        writeInt(chunk.length);
+        writeLength(chunk.length);
         for (final Object x: chunk) {
             encode(x);
         }
     }
 
     private void encodeChunk(final Object[] chunk, final int pos) {
-        writeInt(pos);
+        writeLength(pos);
         for (int i = 0; i < pos; i++) {
             encode(chunk[i]);
         }
     }
 
+    // Either writes a reference to a recent value and returns true,
+    // or remembers the value in the ring (evicting the oldest one)
+    private boolean writeStringRef(final Object x) {
+        final Integer index = stringRefs.get(x);
+        if (index != null) {
+            writeOID(OID.STRING_REF);
+            writeLength(index);
+            return true;
+        }
+        final Object evicted = stringRing[stringNext];
+        if (evicted != null) {
+            stringRefs.remove(evicted);
+        }
+        stringRing[stringNext] = x;
+        stringRefs.put(x, stringNext);
+        stringNext = (stringNext + 1) % stringRing.length;
+        return false;
+    }
+
     @SuppressWarnings("unused")
     public void encodeString(final String s) {
         if (s.isEmpty()) {
             writeOID(OID.STRING_EMPTY);
-        } else {
+        } else if (stringRefs == null || s.length() > Const.STRING_REF_MAX_LENGTH || !writeStringRef(s)) {
             encodeAsString(OID.STRING, s);
         }
     }
@@ -305,7 +744,7 @@ public final class Encoder implements AutoCloseable {
     @SuppressWarnings("unused")
     public void encodeObjectArray(final Object[] array) {
         writeOID(OID.ARR_OBJ);
-        writeInt(array.length);
+        writeLength(array.length);
         for (final Object x: array) {
             encode(x);
         }
@@ -314,63 +753,55 @@ public final class Encoder implements AutoCloseable {
     @SuppressWarnings("unused")
     public void encodeIntArray(final int[] array) {
         writeOID(OID.ARR_INT);
-        writeInt(array.length);
-        for (final int i: array) {
-            writeInt(i);
-        }
+        writeLength(array.length);
+        writeInts(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeShortArray(final short[] array) {
         writeOID(OID.ARR_SHORT);
-        writeInt(array.length);
-        for (final short s: array) {
-            writeShort(s);
-        }
+        writeLength(array.length);
+        writeShorts(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeBoolArray(final boolean[] array) {
         writeOID(OID.ARR_BOOL);
-        writeInt(array.length);
-        for (final boolean b: array) {
-            writeBoolean(b);
-        }
+        writeLength(array.length);
+        writeBooleans(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeFloatArray(final float[] array) {
         writeOID(OID.ARR_FLOAT);
-        writeInt(array.length);
-        for (final float f: array) {
-            writeFloat(f);
-        }
+        writeLength(array.length);
+        writeFloats(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeDoubleArray(final double[] array) {
         writeOID(OID.ARR_DOUBLE);
-        writeInt(array.length);
-        for (final double d: array) {
-            writeDouble(d);
-        }
+        writeLength(array.length);
+        writeDoubles(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeCharArray(final char[] array) {
         writeOID(OID.ARR_CHAR);
-        writeInt(array.length);
-        for (final char c: array) {
-            writeCharacter(c);
-        }
+        writeLength(array.length);
+        writeChars(array, 0, array.length);
     }
 
     @SuppressWarnings("unused")
     public void encodeLongArray(final long[] array) {
-        writeOID(OID.ARR_LONG);
-        writeInt(array.length);
-        for (final long l: array) {
-            writeLong(l);
+        if (options.delta() && deltaSize(array, array.length) < 8L * array.length) {
+            writeOID(OID.ARR_LONG_DELTA);
+            writeLength(array.length);
+            writeDeltaLongs(array, array.length);
+        } else {
+            writeOID(OID.ARR_LONG);
+            writeLength(array.length);
+            writeLongs(array, 0, array.length);
         }
     }
 
@@ -397,7 +828,7 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void writeCountable(final int len, final Iterable<?> iterable) {
-        writeInt(len);
+        writeLength(len);
         for (final Object x : iterable) {
             encode(x);
         }
@@ -431,12 +862,16 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void encodeKeyword(final Keyword kw) {
-        encodeAsString(OID.CLJ_KEYWORD, kw.toString().substring(1));
+        if (stringRefs == null || !writeStringRef(kw)) {
+            encodeAsString(OID.CLJ_KEYWORD, kw.toString().substring(1));
+        }
     }
 
     @SuppressWarnings("unused")
     public void encodeSymbol(final Symbol s) {
-        encodeAsString(OID.CLJ_SYMBOL, s.toString());
+        if (stringRefs == null || !writeStringRef(s)) {
+            encodeAsString(OID.CLJ_SYMBOL, s.toString());
+        }
     }
 
     @SuppressWarnings("unused")
@@ -604,7 +1039,7 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void writeMap(final Map<?,?> m) {
-        writeInt(m.size());
+        writeLength(m.size());
         for (final Map.Entry<?,?> e: m.entrySet()) {
             encode(e.getKey());
             encode(e.getValue());
@@ -621,11 +1056,45 @@ public final class Encoder implements AutoCloseable {
         encodeAsMap(OID.JVM_MAP, m);
     }
 
+    // Small maps with keyword keys: the keys are written once per
+    // shape, then maps of the same shape carry only its id and values
+    private boolean encodeShaped(final APersistentMap m) {
+        final int len = m.count();
+        int i = 0;
+        for (final Object e: m) {
+            final Object key = ((Map.Entry<?,?>) e).getKey();
+            if (!(key instanceof Keyword)) {
+                return false;
+            }
+            shapeKeys[i++] = key;
+        }
+        final Integer id = mapShapes.get(shapeProbe.set(shapeKeys, len));
+        if (id == null) {
+            if (mapShapes.size() >= Const.MAP_SHAPE_MAX_COUNT) {
+                return false;
+            }
+            final MapShape shape = shapeProbe.copy();
+            mapShapes.put(shape, mapShapes.size());
+            writeOID(OID.CLJ_MAP_SHAPE);
+            writeLength(len);
+            for (final Object key: shape.keys()) {
+                encode(key);
+            }
+        } else {
+            writeOID(OID.CLJ_MAP_SHAPED);
+            writeLength(id);
+        }
+        for (final Object e: m) {
+            encode(((Map.Entry<?,?>) e).getValue());
+        }
+        return true;
+    }
+
     @SuppressWarnings("unused")
     public void encodeAPersistentMap(final APersistentMap m) {
         if (m.count() == 0) {
             writeOID(OID.CLJ_MAP_EMPTY);
-        } else {
+        } else if (mapShapes == null || m.count() > Const.MAP_SHAPE_MAX_KEYS || !encodeShaped(m)) {
             encodeAsMap(OID.CLJ_MAP, m);
         }
     }
@@ -634,28 +1103,227 @@ public final class Encoder implements AutoCloseable {
     public void encodeITransientVector(final ITransientVector trVec) {
         final int len = trVec.count();
         writeOID(OID.CLJ_TR_VEC);
-        writeInt(len);
+        writeLength(len);
         for (int i = 0; i < len; i++) {
             encode(trVec.nth(i));
         }
     }
 
     @SuppressWarnings("unused")
+    // Only the [position, limit) region is written; it decodes as
+    // a buffer with position 0 and limit at its end
     public void encodeByteBuffer(final ByteBuffer bb) {
-        final byte[] array = bb.array();
-        final int position = bb.position();
-        final int limit = bb.limit();
+        final int len = bb.remaining();
         writeOID(OID.IO_BYTEBUFFER);
-        writeInt(position);
-        writeInt(limit);
-        writeBytes(array);
+        writeLength(0);
+        writeLength(len);
+        writeLength(len);
+        writeBuffer(bb);
+    }
+
+    // Long and Double columns are packed, string columns are
+    // dictionary-encoded when there are many repeats
+    private void encodeColumn(final Object[] column) {
+        final int len = column.length;
+        boolean longs = true;
+        boolean doubles = true;
+        boolean strings = true;
+        for (final Object x: column) {
+            longs &= x instanceof Long;
+            doubles &= x instanceof Double;
+            strings &= x instanceof String;
+        }
+        if (longs) {
+            final long[] array = new long[len];
+            for (int i = 0; i < len; i++) {
+                array[i] = (Long) column[i];
+            }
+            writeByte(Const.COLUMN_LONGS);
+            writeLongs(array, 0, len);
+            return;
+        }
+        if (doubles) {
+            final double[] array = new double[len];
+            for (int i = 0; i < len; i++) {
+                array[i] = (Double) column[i];
+            }
+            writeByte(Const.COLUMN_DOUBLES);
+            writeDoubles(array, 0, len);
+            return;
+        }
+        if (strings) {
+            final HashMap<Object, Integer> dict = new HashMap<>();
+            final int[] codes = new int[len];
+            for (int i = 0; i < len && dict.size() <= len / 2; i++) {
+                codes[i] = dict.computeIfAbsent(column[i], k -> dict.size());
+            }
+            if (dict.size() <= len / 2) {
+                final Object[] values = new Object[dict.size()];
+                dict.forEach((k, v) -> values[v] = k);
+                writeByte(Const.COLUMN_STRINGS);
+                writeLength(values.length);
+                for (final Object x: values) {
+                    writeString((String) x);
+                }
+                writeInts(codes, 0, len);
+                return;
+            }
+        }
+        writeByte(Const.COLUMN_OBJECTS);
+        for (final Object x: column) {
+            encode(x);
+        }
+    }
+
+    // A vector of Clojure maps with the same keys and no metadata
+    // Sorted and struct maps would come back as plain maps
+    private static boolean isColumnarRow(final Object x) {
+        return x != null && (x.getClass() == PersistentArrayMap.class || x.getClass() == PersistentHashMap.class);
+    }
+
+    private boolean encodeColumnar(final APersistentVector v) {
+        final int rows = v.count();
+        if (rows < Const.COLUMNAR_MIN_ROWS
+                || !isColumnarRow(v.nth(0))
+                || ((APersistentMap) v.nth(0)).isEmpty()) {
+            return false;
+        }
+        final Object[] keys = ((APersistentMap) v.nth(0)).keySet().toArray();
+        for (final Object row: v) {
+            if (!isColumnarRow(row)
+                    || ((APersistentMap) row).count() != keys.length
+                    || (options.saveMeta() && getMeta(row) != null)) {
+                return false;
+            }
+            for (final Object key: keys) {
+                if (!((APersistentMap) row).containsKey(key)) {
+                    return false;
+                }
+            }
+        }
+        writeOID(OID.CLJ_VEC_COLUMNS);
+        writeLength(rows);
+        writeLength(keys.length);
+        final Object[] column = new Object[rows];
+        for (final Object key: keys) {
+            int i = 0;
+            for (final Object row: v) {
+                column[i++] = ((APersistentMap) row).valAt(key);
+            }
+            encode(key);
+            encodeColumn(column);
+        }
+        return true;
+    }
+
+    // Only longs or only doubles go as one block of primitives,
+    // longs are zigzag varints in the varint mode
+    private boolean encodePacked(final int len, final Iterable<?> items) {
+        if (len < Const.PACK_MIN_ITEMS) {
+            return false;
+        }
+        boolean longs = true;
+        boolean doubles = true;
+        for (final Object x: items) {
+            longs &= x instanceof Long;
+            doubles &= x instanceof Double;
+            if (!longs && !doubles) {
+                return false;
+            }
+        }
+        if (longs) {
+            final long[] array = new long[len];
+            int i = 0;
+            long size = 0;
+            for (final Object x: items) {
+                array[i] = (Long) x;
+                size += varint ? varLongSize(zigzag(array[i])) : 8;
+                i++;
+            }
+            if (options.delta() && deltaSize(array, len) < size) {
+                writeOID(OID.CLJ_VEC_LONGS_DELTA);
+                writeLength(len);
+                writeDeltaLongs(array, len);
+            } else {
+                writeOID(OID.CLJ_VEC_LONGS);
+                writeLength(len);
+                if (varint) {
+                    for (final long l: array) {
+                        writeVarLong(l);
+                    }
+                } else {
+                    writeLongs(array, 0, len);
+                }
+            }
+        } else {
+            final double[] array = new double[len];
+            int i = 0;
+            for (final Object x: items) {
+                array[i++] = (Double) x;
+            }
+            writeOID(OID.CLJ_VEC_DOUBLES);
+            writeLength(len);
+            writeDoubles(array, 0, len);
+        }
+        return true;
+    }
+
+    // Vectors of only Instants or only java.util.Dates (not their
+    // java.sql subclasses) are written as delta-encoded longs
+    private boolean encodeTemporal(final APersistentVector v) {
+        final int len = v.count();
+        if (len < Const.PACK_MIN_ITEMS) {
+            return false;
+        }
+        final Object head = v.nth(0);
+        if (head == null) {
+            return false;
+        }
+        final Class<?> type = head.getClass();
+        if (type != Instant.class && type != java.util.Date.class) {
+            return false;
+        }
+        // nils and mixed types go the usual way
+        for (final Object x: v) {
+            if (x == null || x.getClass() != type) {
+                return false;
+            }
+        }
+        if (type == Instant.class) {
+            final long[] secs = new long[len];
+            final long[] nanos = new long[len];
+            int i = 0;
+            for (final Object x: v) {
+                secs[i] = ((Instant) x).getEpochSecond();
+                nanos[i] = ((Instant) x).getNano();
+                i++;
+            }
+            writeOID(OID.CLJ_VEC_INSTANTS);
+            writeLength(len);
+            writeDeltaLongs(secs, len);
+            writeDeltaLongs(nanos, len);
+        } else {
+            final long[] millis = new long[len];
+            int i = 0;
+            for (final Object x: v) {
+                millis[i++] = ((java.util.Date) x).getTime();
+            }
+            writeOID(OID.CLJ_VEC_DATES);
+            writeLength(len);
+            writeDeltaLongs(millis, len);
+        }
+        return true;
     }
 
     @SuppressWarnings("unused")
     public void encodeAPersistentVector(final APersistentVector v) {
         if (v.isEmpty()) {
             writeOID(OID.CLJ_VEC_EMPTY);
-        } else {
+        } else if (options.columnar() && encodeColumnar(v)) {
+            return;
+        } else if (options.delta() && encodeTemporal(v)) {
+            return;
+        } else if (!options.packNumbers() || !encodePacked(v.count(), v)) {
             encodeCountable(OID.CLJ_VEC, v.count(), v);
         }
     }
@@ -730,7 +1398,9 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void encodeClojureList(final PersistentList l) {
-        encodeCountable(OID.CLJ_LIST, l.count(), l);
+        if (!options.packNumbers() || !encodePacked(l.count(), l)) {
+            encodeCountable(OID.CLJ_LIST, l.count(), l);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -783,7 +1453,7 @@ public final class Encoder implements AutoCloseable {
             writeString(message);
         }
 
-        writeInt(trace.length);
+        writeLength(trace.length);
         for (StackTraceElement element: trace) {
             writeStackTraceElement(element);
         }
@@ -795,7 +1465,7 @@ public final class Encoder implements AutoCloseable {
             encode(cause);
         }
 
-        writeInt(suppressed.length);
+        writeLength(suppressed.length);
         for (Throwable s: suppressed) {
             encode(s);
         }
@@ -868,8 +1538,10 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void encodeHeader(final Header header) {
-        writeOID(OID.HEADER);
-        writeShort(header.version());
+        // always two bytes, so any version can read it
+        writeShort(OID.HEADER);
+        writeShort(header.written());
+        writeInt(header.flags());
         writeGap(Const.HEADER_GAP);
     }
 
@@ -886,7 +1558,55 @@ public final class Encoder implements AutoCloseable {
         }
     }
 
+    // Values without identity worth tracking
+    private static boolean isTracked(final Object x) {
+        return !(x == null
+                || x instanceof Boolean
+                || x instanceof Number
+                || x instanceof Character
+                || x instanceof Keyword
+                || x instanceof Symbol);
+    }
+
+    // Let the frame cut a block after a top-level object
+    private void endObject() {
+        if (frame.pending() + buf.position() >= frame.blockSize()) {
+            flushBuffer();
+            try {
+                frame.cut();
+            } catch (IOException e) {
+                throw Err.error(e, "could not write a frame block");
+            }
+        }
+    }
+
     public void encode(final Object x) {
+        if (aligned) {
+            depth++;
+            try {
+                encodeValue(x);
+            } finally {
+                depth--;
+            }
+            if (depth == 0) {
+                endObject();
+            }
+        } else {
+            encodeValue(x);
+        }
+    }
+
+    private void encodeValue(final Object x) {
+        if (objectRefs != null && isTracked(x)) {
+            final Integer id = objectRefs.get(x);
+            if (id != null) {
+                writeOID(OID.OBJ_REF);
+                writeLength(id);
+                return;
+            }
+            objectRefs.put(x, objectRefs.size());
+            writeOID(OID.OBJ_REF_NEW);
+        }
         if (options.saveMeta()) {
             final APersistentMap meta = getMeta(x);
             if (meta != null) {
@@ -897,6 +1617,76 @@ public final class Encoder implements AutoCloseable {
         protoEncode.invoke(x, this);
     }
 
+    // Strings, references and shapes are numbered in the order of
+    // writing, so these modes cannot encode segments apart
+    private boolean isStateful() {
+        return stringRefs != null || objectRefs != null || mapShapes != null;
+    }
+
+    // A vector without meta that the sequential path writes as CLJ_VEC
+    private boolean isPlainVector(final APersistentVector v) {
+        return !options.columnar()
+                && !options.delta()
+                && !options.packNumbers()
+                && !(options.saveMeta() && getMeta(v) != null);
+    }
+
+    private ByteBuffer encodeSegment(final IntFunction<Object> items, final int from, final int to) {
+        final ByteBuffer segmentBuf = ByteBuffer.allocate(Const.MIN_BUFFER_SIZE);
+        final Encoder segment = new Encoder(protoEncode, null, null, segmentBuf, options);
+        for (int i = from; i < to; i++) {
+            segment.encode(items.apply(i));
+        }
+        return segment.buf.flip();
+    }
+
+    private void encodeSegments(final ForkJoinPool pool, final IntFunction<Object> items, final int len) {
+        final int count = Math.min(pool.getParallelism() * 4, len / Const.PARALLEL_MIN_SEGMENT);
+        final int step = (len + count - 1) / count;
+        final List<ForkJoinTask<ByteBuffer>> tasks = new ArrayList<>(count);
+        for (int from = 0; from < len; from += step) {
+            final int start = from;
+            final int end = Math.min(len, from + step);
+            tasks.add(pool.submit(() -> encodeSegment(items, start, end)));
+        }
+        for (final ForkJoinTask<ByteBuffer> task : tasks) {
+            final ByteBuffer bb = task.join();
+            writeRaw(bb.array(), bb.arrayOffset(), bb.limit());
+        }
+    }
+
+    // Encode large vectors and object arrays by segments on the pool.
+    // The result is the same as encode(x) produces; anything else,
+    // including stateful modes, goes the usual way.
+    @SuppressWarnings("unused")
+    public void encodeParallel(final Object x, final ForkJoinPool pool) {
+        if (isStateful() || pool.getParallelism() < 2) {
+            encode(x);
+            return;
+        } else if (x instanceof APersistentVector v
+                && v.count() >= Const.PARALLEL_MIN_SEGMENT * 2
+                && isPlainVector(v)) {
+            writeOID(OID.CLJ_VEC);
+            writeLength(v.count());
+            encodeSegments(pool, v::nth, v.count());
+        } else if (x instanceof Object[] array && array.length >= Const.PARALLEL_MIN_SEGMENT * 2) {
+            writeOID(OID.ARR_OBJ);
+            writeLength(array.length);
+            encodeSegments(pool, i -> array[i], array.length);
+        } else {
+            encode(x);
+            return;
+        }
+        if (aligned && depth == 0) {
+            endObject();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void encodeParallel(final Object x) {
+        encodeParallel(x, ForkJoinPool.commonPool());
+    }
+
     public void encodeUncountable(final short oid, final Iterator<?> iterator) {
         writeOID(oid);
         Object x;
@@ -921,7 +1711,7 @@ public final class Encoder implements AutoCloseable {
         if (pos > 0) {
             encodeChunk(chunk, pos);
         }
-        writeInt(0);
+        writeLength(0);
     }
 
     @SuppressWarnings("unused")
@@ -950,7 +1740,59 @@ public final class Encoder implements AutoCloseable {
         if (off > 0) {
             writeBytes(buf, 0, off);
         }
-        writeInt(0);
+        writeLength(0);
+    }
+
+    private void transferFile(final FileChannel fc, final long size) throws IOException {
+        flushBuffer();
+        long pos = 0;
+        while (pos < size) {
+            final long n = fc.transferTo(pos, size - pos, channel);
+            if (n <= 0) {
+                throw Err.error("could not transfer file bytes, position: %s, size: %s", pos, size);
+            }
+            pos += n;
+        }
+    }
+
+    private void readFile(final FileChannel fc, final long size) throws IOException {
+        long left = size;
+        while (left > 0) {
+            if (outputStream == null) {
+                ensure((int) Math.min(left, Integer.MAX_VALUE - 8));
+            } else {
+                ensure(1);
+            }
+            final int limit = buf.limit();
+            buf.limit(buf.position() + (int) Math.min(left, buf.remaining()));
+            final int r = fc.read(buf);
+            buf.limit(limit);
+            if (r == -1) {
+                throw Err.error("file is shorter than expected, size: %s, missing: %s", size, left);
+            }
+            left -= r;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void encodePath(final Path path) {
+        try (final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            writeOID(OID.IO_FILE);
+            writeLong(size);
+            if (channel == null) {
+                readFile(fc, size);
+            } else {
+                transferFile(fc, size);
+            }
+        } catch (IOException e) {
+            throw Err.error(e, "could not encode file: %s", path);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void encodeFile(final File file) {
+        encodePath(file.toPath());
     }
 
     @SuppressWarnings("unused")
@@ -973,19 +1815,51 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void flush() {
-        try {
-            outputStream.flush();
-        } catch (IOException e) {
-            throw Err.error(e, "could not flush the stream");
+        if (outputStream != null) {
+            flushBuffer();
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                throw Err.error(e, "could not flush the stream");
+            }
         }
     }
 
+    // The encoded bytes without copying: position is 0, limit is the end of data
+    @SuppressWarnings("unused")
+    public ByteBuffer toByteBuffer() {
+        if (outputStream == null) {
+            return buf.slice(start, buf.position() - start);
+        } else if (memory != null) {
+            flushBuffer();
+            try {
+                frame.finish();
+            } catch (IOException e) {
+                throw Err.error(e, "could not finish the frame");
+            }
+            return ByteBuffer.wrap(memory.toByteArray());
+        } else {
+            throw Err.error("the encoder writes into a stream, not into memory");
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public byte[] toByteArray() {
+        final ByteBuffer bb = toByteBuffer();
+        final byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        return bytes;
+    }
+
     @Override
     public void close() {
-        try {
-            outputStream.close();
-        } catch (IOException e) {
-            throw Err.error(e, "could not close the stream");
+        if (outputStream != null) {
+            flushBuffer();
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                throw Err.error(e, "could not close the stream");
+            }
         }
     }
 }
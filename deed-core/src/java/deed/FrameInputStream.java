@@ -0,0 +1,267 @@
+package deed;
+
+import java.io.*;
+import java.util.zip.CRC32C;
+
+// Reads the blocks written by FrameOutputStream. Several frames
+// may follow each other, e.g. when a file gets appended.
+public final class FrameInputStream extends InputStream {
+
+    // What verify has seen; checked is the number of blocks with a checksum
+    public record Stats(long frames, long blocks, long checked, long rawSize, long storedSize) {}
+
+    // A block as it is stored; first means it opens a frame
+    public record Block(long index, boolean first, boolean aligned, byte codec, int rawLen, byte[] payload) {
+
+        public byte[] unpack() {
+            if (codec == Const.FRAME_CODEC_NONE) {
+                return payload;
+            }
+            final byte[] raw = new byte[rawLen];
+            LZBlock.decompress(payload, 0, payload.length, raw, 0, rawLen);
+            return raw;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] head;
+    private final CRC32C crc;
+    private boolean checksum;
+    private boolean aligned;
+    private int blockSize;
+    private int codec;
+    private int rawLen;
+    private int stored;
+    private boolean first;
+    private long frames;
+    private long blocks;
+    private long checked;
+    private long rawSize;
+    private long storedSize;
+    private byte[] block;
+    private byte[] packed;
+    private int pos;
+    private int limit;
+    private boolean inFrame;
+    private boolean done;
+
+    public FrameInputStream(final InputStream in) {
+        this.in = in;
+        this.head = new byte[Const.FRAME_HEADER_SIZE + 4];
+        this.crc = new CRC32C();
+        this.block = new byte[0];
+        this.packed = new byte[0];
+    }
+
+    @SuppressWarnings("unused")
+    public static Stats verify(final InputStream in) {
+        return new FrameInputStream(in).verify();
+    }
+
+    // Check if the bytes start with the frame magic
+    public static boolean isFramed(final byte[] bytes, final int len) {
+        return len >= 4 && getInt(bytes, 0) == Const.FRAME_MAGIC;
+    }
+
+    // Wrap the stream when it starts with the frame magic
+    public static InputStream detect(final InputStream in) {
+        final PushbackInputStream pushback = new PushbackInputStream(in, 4);
+        final byte[] magic = new byte[4];
+        try {
+            final int len = pushback.readNBytes(magic, 0, 4);
+            pushback.unread(magic, 0, len);
+            return isFramed(magic, len) ? new FrameInputStream(pushback) : pushback;
+        } catch (IOException e) {
+            throw Err.error(e, "could not read the input stream");
+        }
+    }
+
+    private static int getInt(final byte[] array, final int off) {
+        return ((array[off] & 0xFF) << 24)
+                | ((array[off + 1] & 0xFF) << 16)
+                | ((array[off + 2] & 0xFF) << 8)
+                | (array[off + 3] & 0xFF);
+    }
+
+    private void readFully(final byte[] array, final int off, final int len) throws IOException {
+        if (in.readNBytes(array, off, len) != len) {
+            throw new EOFException("the frame is truncated");
+        }
+    }
+
+    private void readFrameHeader(final int first) throws IOException {
+        head[0] = (byte) first;
+        readFully(head, 1, Const.FRAME_HEADER_SIZE - 1);
+        if (getInt(head, 0) != Const.FRAME_MAGIC) {
+            throw Err.error(frames == 0 ? "the data is not framed, magic: 0x%08x" : "wrong frame magic: 0x%08x",
+                    getInt(head, 0));
+        }
+        if (head[4] != Const.FRAME_VERSION) {
+            throw Err.error("unsupported frame version: %s", head[4]);
+        }
+        blockSize = getInt(head, 6);
+        if (blockSize < 0 || blockSize > Const.FRAME_MAX_SIZE) {
+            throw Err.error("wrong frame size: %s", blockSize);
+        }
+        checksum = (head[5] & Const.FRAME_FLAG_CHECKSUM) != 0;
+        aligned = (head[5] & Const.FRAME_FLAG_ALIGNED) != 0;
+        frames++;
+    }
+
+    // Returns false when there are no more blocks
+    private boolean readBlockHeader() throws IOException {
+        int c = inFrame ? in.read() : Const.FRAME_END & 0xFF;
+        first = false;
+        while (c == (Const.FRAME_END & 0xFF)) {
+            final int next = in.read();
+            if (next == -1) {
+                return false;
+            }
+            readFrameHeader(next);
+            inFrame = true;
+            first = true;
+            c = in.read();
+        }
+        if (c == -1) {
+            throw new EOFException("the frame has no end marker");
+        }
+        final int headSize = Const.FRAME_BLOCK_HEADER_SIZE + (checksum ? 4 : 0);
+        readFully(head, 0, headSize - 1);
+        rawLen = getInt(head, 0);
+        stored = getInt(head, 4);
+        // aligned blocks end at the edge of an object so they may be longer
+        if (rawLen < 0 || (!aligned && rawLen > blockSize) || stored < 0 || stored > rawLen + rawLen / 255L + 16) {
+            throw Err.error("wrong frame block %s, length: %s, stored: %s", blocks, rawLen, stored);
+        }
+        if (c == Const.FRAME_CODEC_NONE) {
+            if (stored != rawLen) {
+                throw Err.error("wrong stored block %s, length: %s, stored: %s", blocks, rawLen, stored);
+            }
+        } else if (c != Const.FRAME_CODEC_LZ) {
+            throw Err.error("unknown codec of frame block %s: %s", blocks, c);
+        }
+        codec = c;
+        return true;
+    }
+
+    private void readPayload(final byte[] payload) throws IOException {
+        readFully(payload, 0, stored);
+        if (checksum) {
+            crc.reset();
+            crc.update(payload, 0, stored);
+            final int expected = getInt(head, 8);
+            if ((int) crc.getValue() != expected) {
+                throw Err.error("checksum mismatch in frame block %s, expected: 0x%08x, actual: 0x%08x",
+                        blocks, expected, (int) crc.getValue());
+            }
+            checked++;
+        }
+    }
+
+    private void countBlock() {
+        blocks++;
+        rawSize += rawLen;
+        storedSize += stored;
+    }
+
+    // Returns false when there are no more blocks. When verifying,
+    // a block with a checksum is not decompressed.
+    private boolean readBlock(final boolean verify) throws IOException {
+        if (!readBlockHeader()) {
+            return false;
+        }
+        if (block.length < rawLen) {
+            block = new byte[Math.max(rawLen, blockSize)];
+        }
+        final byte[] payload;
+        if (codec == Const.FRAME_CODEC_NONE) {
+            payload = block;
+        } else {
+            if (packed.length < stored) {
+                packed = new byte[Math.max(stored, LZBlock.maxCompressedLength(blockSize))];
+            }
+            payload = packed;
+        }
+        readPayload(payload);
+        if (payload == packed && !(verify && checksum)) {
+            LZBlock.decompress(packed, 0, stored, block, 0, rawLen);
+        }
+        countBlock();
+        pos = 0;
+        limit = verify ? 0 : rawLen;
+        return true;
+    }
+
+    // The next block with no decompression, or null at the end
+    public Block readRawBlock() {
+        try {
+            if (!readBlockHeader()) {
+                return null;
+            }
+            final byte[] payload = new byte[stored];
+            readPayload(payload);
+            final Block result = new Block(blocks, first, aligned, (byte) codec, rawLen, payload);
+            countBlock();
+            return result;
+        } catch (IOException e) {
+            throw Err.error(e, "could not read frame block %s", blocks);
+        }
+    }
+
+    // Check the structure and checksums of all frames without decoding
+    public Stats verify() {
+        try {
+            while (readBlock(true)) {
+                // keep reading
+            }
+        } catch (IOException e) {
+            throw Err.error(e, "could not verify frame block %s", blocks);
+        }
+        if (frames == 0) {
+            throw Err.error("the data is not framed: no frames found");
+        }
+        return new Stats(frames, blocks, checked, rawSize, storedSize);
+    }
+
+    private boolean fill() throws IOException {
+        while (pos == limit) {
+            if (done || !readBlock(false)) {
+                done = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return block[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,206 @@
+package deed;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// Splits the data into blocks of a fixed size and compresses
+// each block on its own. A block is stored as is when the codec
+// does not make it smaller. Layout: the frame header (magic,
+// version, flags, block size) then blocks of (codec, raw length,
+// stored length, optional CRC32C of the payload, payload) and
+// the end marker. Aligned blocks are cut only when the encoder
+// says a top-level object is over, so they may exceed the size.
+public final class FrameOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte codec;
+    private final int blockSize;
+    private final boolean aligned;
+    private byte[] block;
+    private byte[] packed;
+    private final byte[] head;
+    private final LZBlock lz;
+    private final CRC32C crc;
+    private int count;
+    private boolean started;
+    private boolean finished;
+    private boolean closed;
+
+    public FrameOutputStream(final OutputStream out,
+                             final byte codec,
+                             final int blockSize,
+                             final boolean checksum,
+                             final boolean aligned) {
+        if (codec != Const.FRAME_CODEC_NONE && codec != Const.FRAME_CODEC_LZ) {
+            throw Err.error("unknown frame codec: %s", codec);
+        }
+        if (blockSize < Const.MIN_BUFFER_SIZE || blockSize > Const.FRAME_MAX_SIZE) {
+            throw Err.error("wrong frame size: %s", blockSize);
+        }
+        this.out = out;
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.aligned = aligned;
+        this.block = new byte[blockSize];
+        this.packed = codec == Const.FRAME_CODEC_LZ ? new byte[LZBlock.maxCompressedLength(blockSize)] : null;
+        this.head = new byte[Const.FRAME_HEADER_SIZE + 4];
+        this.lz = codec == Const.FRAME_CODEC_LZ ? new LZBlock() : null;
+        this.crc = checksum ? new CRC32C() : null;
+    }
+
+    // Checksums and alignment make no sense without frames, so they turn them on
+    public static boolean enabled(final Options options) {
+        return options.framed() || options.frameChecksum() || options.frameAligned();
+    }
+
+    public static FrameOutputStream of(final OutputStream out, final Options options) {
+        return new FrameOutputStream(out,
+                options.frameCodec(),
+                options.frameSize(),
+                options.frameChecksum(),
+                options.frameAligned());
+    }
+
+    public boolean aligned() {
+        return aligned;
+    }
+
+    // The bytes in the current block
+    public int pending() {
+        return count;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    private static void putInt(final byte[] array, final int off, final int i) {
+        array[off] = (byte) (i >>> 24);
+        array[off + 1] = (byte) (i >>> 16);
+        array[off + 2] = (byte) (i >>> 8);
+        array[off + 3] = (byte) i;
+    }
+
+    private void writeHeader() throws IOException {
+        if (!started) {
+            started = true;
+            putInt(head, 0, Const.FRAME_MAGIC);
+            head[4] = Const.FRAME_VERSION;
+            head[5] = (byte) ((crc == null ? 0 : Const.FRAME_FLAG_CHECKSUM) | (aligned ? Const.FRAME_FLAG_ALIGNED : 0));
+            putInt(head, 6, blockSize);
+            out.write(head, 0, Const.FRAME_HEADER_SIZE);
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        writeHeader();
+        if (count == 0) {
+            return;
+        }
+        byte blockCodec = Const.FRAME_CODEC_NONE;
+        byte[] payload = block;
+        int stored = count;
+        if (lz != null) {
+            if (packed.length < LZBlock.maxCompressedLength(count)) {
+                packed = new byte[LZBlock.maxCompressedLength(count)];
+            }
+            final int len = lz.compress(block, 0, count, packed, 0);
+            if (len < count) {
+                blockCodec = Const.FRAME_CODEC_LZ;
+                payload = packed;
+                stored = len;
+            }
+        }
+        head[0] = blockCodec;
+        putInt(head, 1, count);
+        putInt(head, 5, stored);
+        int headSize = Const.FRAME_BLOCK_HEADER_SIZE;
+        if (crc != null) {
+            crc.reset();
+            crc.update(payload, 0, stored);
+            putInt(head, headSize, (int) crc.getValue());
+            headSize += 4;
+        }
+        out.write(head, 0, headSize);
+        out.write(payload, 0, stored);
+        count = 0;
+    }
+
+    private void blockFull() throws IOException {
+        if (finished) {
+            throw Err.error("the frame is finished");
+        }
+        if (aligned) {
+            if (block.length >= Integer.MAX_VALUE / 2) {
+                throw Err.error("an aligned frame block is too large: %s", block.length);
+            }
+            block = Arrays.copyOf(block, block.length * 2);
+        } else {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == block.length) {
+            blockFull();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == block.length) {
+                blockFull();
+            }
+            final int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Called at the edge of a top-level object
+    public void cut() throws IOException {
+        if (count >= blockSize) {
+            writeBlock();
+            if (block.length > blockSize) {
+                block = new byte[blockSize];
+            }
+        }
+    }
+
+    // Flushing cuts the current block short
+    @Override
+    public void flush() throws IOException {
+        if (!finished) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    // Write the rest and the end marker but leave the stream open
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            writeBlock();
+            out.write(Const.FRAME_END);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,7 +1,49 @@
 package deed;
 
-public record Header(short version) {
-    public static Header of(short version) {
-        return new Header(version);
+public record Header(short version, int flags) {
+
+    public static Header of(short version, int flags) {
+        return new Header(version, flags);
+    }
+
+    // Parses the version and flags as they're written
+    public static Header read(final short written, final int flags) {
+        final short version = (short) (written & ~Const.HEADER_VERSION_FLAGGED);
+        if (version < 1 || version > Const.HEADER_VERSION_MAX) {
+            throw Err.error("unsupported version: %s", written);
+        }
+        if ((flags & ~Const.HEADER_FLAGS_KNOWN) != 0) {
+            throw Err.error("unsupported header flags: %s", flags);
+        }
+        if (flags != 0 && (written & Const.HEADER_VERSION_FLAGGED) == 0) {
+            throw Err.error("header flags %s are set but the version %s is not flagged", flags, written);
+        }
+        return of(version, flags);
+    }
+
+    // The version to write: flagged when any flag is set
+    public short written() {
+        return flags == 0 ? version : (short) (version | Const.HEADER_VERSION_FLAGGED);
+    }
+
+    public static int flags(final Options options) {
+        int flags = 0;
+        if (options.varint()) {
+            flags |= Const.HEADER_FLAG_VARINT;
+        }
+        if (options.dedupeStrings()) {
+            flags |= Const.HEADER_FLAG_DEDUPE_STRINGS;
+        }
+        return flags;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean varint() {
+        return (flags & Const.HEADER_FLAG_VARINT) != 0;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean dedupeStrings() {
+        return (flags & Const.HEADER_FLAG_DEDUPE_STRINGS) != 0;
     }
 }
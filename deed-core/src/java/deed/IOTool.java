@@ -1,6 +1,11 @@
 package deed;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -14,16 +19,40 @@ public class IOTool {
         }
     }
 
-    public static ByteArrayInputStream byteArrayInputStream(final ByteArrayOutputStream ba) {
-        return new ByteArrayInputStream(ba.toByteArray());
+    public static MappedByteBuffer mapFile(final File file) {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw Err.error(e, "could not map file %s", file);
+        }
     }
 
-    public static FileInputStream fileInputStream(final File file) {
-        try {
-            return new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            throw Err.error(e, "file %s not found", file);
-        }
+    // Read the remaining bytes of a heap, direct or mapped buffer
+    public static InputStream byteBufferInputStream(final ByteBuffer buf) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                final int n = Math.min(len, buf.remaining());
+                buf.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return buf.remaining();
+            }
+        };
     }
 
     @SuppressWarnings("unused")
@@ -52,4 +81,17 @@ public class IOTool {
 
         }
     }
+
+    @SuppressWarnings("unused")
+    public static ParallelGZIPOutputStream wrapParallelGZIPOutputStream(final OutputStream out) {
+        return ParallelGZIPOutputStream.of(out);
+    }
+
+    @SuppressWarnings("unused")
+    public static ParallelGZIPOutputStream wrapParallelGZIPOutputStream(final OutputStream out,
+                                                                       final ExecutorService executor,
+                                                                       final int blockSize,
+                                                                       final int level) {
+        return new ParallelGZIPOutputStream(out, executor, blockSize, level);
+    }
 }
@@ -0,0 +1,81 @@
+package deed;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+// An open addressing table of interned keywords (or symbols)
+// keyed by their UTF-8 bytes. A hit returns the existing
+// instance without allocating a String.
+public final class KeywordCache {
+
+    private static final int PROBES = 4;
+
+    private final byte[][] keys;
+    private final Object[] values;
+    private final int mask;
+    private final Function<String, Object> intern;
+
+    private KeywordCache(final int size, final Function<String, Object> intern) {
+        this.keys = new byte[size][];
+        this.values = new Object[size];
+        this.mask = size - 1;
+        this.intern = intern;
+    }
+
+    // The size must be a power of two
+    public static KeywordCache of(final int size, final Function<String, Object> intern) {
+        return new KeywordCache(size, intern);
+    }
+
+    private static int hash(final ByteBuffer buf, final int pos, final int len) {
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(pos + i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(final byte[] key, final ByteBuffer buf, final int pos, final int len) {
+        if (key.length != len) {
+            return false;
+        }
+        if (buf.hasArray()) {
+            final int off = buf.arrayOffset() + pos;
+            return Arrays.equals(key, 0, len, buf.array(), off, off + len);
+        }
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf.get(pos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Consumes len bytes from the buffer which must be available
+    public Object intern(final ByteBuffer buf, final int len) {
+        final int pos = buf.position();
+        final int h = hash(buf, pos, len);
+        int free = -1;
+        for (int i = 0; i < PROBES; i++) {
+            final int slot = (h + i) & mask;
+            final byte[] key = keys[slot];
+            if (key == null) {
+                free = slot;
+                break;
+            }
+            if (matches(key, buf, pos, len)) {
+                buf.position(pos + len);
+                return values[slot];
+            }
+        }
+        final byte[] bytes = new byte[len];
+        buf.get(bytes);
+        final Object value = intern.apply(new String(bytes, StandardCharsets.UTF_8));
+        final int slot = free == -1 ? h & mask : free;
+        keys[slot] = bytes;
+        values[slot] = value;
+        return value;
+    }
+}
@@ -0,0 +1,152 @@
+package deed;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// A pure Java LZ77 block codec in the spirit of LZ4: a sequence
+// is a token (literal length and match length nibbles), optional
+// length extension bytes, literals, a two-byte offset and the
+// extension of the match length. The last sequence carries only
+// literals. Blocks are independent and at most 64KB apart.
+public final class LZBlock {
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    public static int maxCompressedLength(final int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int hash(final int i) {
+        return (i * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeLength(final byte[] dst, int op, int len) {
+        while (len >= 0xFF) {
+            dst[op++] = (byte) 0xFF;
+            len -= 0xFF;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int writeSequence(final byte[] src, final int anchor, final int litLen,
+                                     final byte[] dst, int op, final int offset, final int matchLen) {
+        final int token = op++;
+        final int litNibble = Math.min(litLen, 15);
+        if (litLen >= 15) {
+            op = writeLength(dst, op, litLen - 15);
+        }
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+        int matchNibble = 0;
+        if (offset > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            final int m = matchLen - MIN_MATCH;
+            matchNibble = Math.min(m, 15);
+            if (m >= 15) {
+                op = writeLength(dst, op, m - 15);
+            }
+        }
+        dst[token] = (byte) ((litNibble << 4) | matchNibble);
+        return op;
+    }
+
+    // Returns the compressed length; dst must hold maxCompressedLength(len) bytes
+    public int compress(final byte[] src, final int off, final int len, final byte[] dst, final int dstOff) {
+        Arrays.fill(table, -1);
+        final int end = off + len;
+        final int matchLimit = end - MIN_MATCH;
+        int ip = off;
+        int anchor = off;
+        int op = dstOff;
+        while (ip < matchLimit) {
+            final int seq = (int) INT.get(src, ip);
+            final int h = hash(seq);
+            final int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || (int) INT.get(src, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < end && src[ref + matchLen] == src[ip + matchLen]) {
+                matchLen++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(src, anchor, end - anchor, dst, op, 0, 0);
+        return op - dstOff;
+    }
+
+    private static int readLength(final byte[] src, final int[] pos) {
+        int len = 0;
+        int b;
+        do {
+            b = src[pos[0]++] & 0xFF;
+            len += b;
+        } while (b == 0xFF);
+        return len;
+    }
+
+    public static void decompress(final byte[] src, final int off, final int len,
+                                  final byte[] dst, final int dstOff, final int rawLen) {
+        final int end = off + len;
+        final int dstEnd = dstOff + rawLen;
+        final int[] pos = {off};
+        int op = dstOff;
+        try {
+            while (true) {
+                final int token = src[pos[0]++] & 0xFF;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    litLen += readLength(src, pos);
+                }
+                if (op + litLen > dstEnd || pos[0] + litLen > end) {
+                    throw Err.error("corrupted LZ block: literals out of bounds");
+                }
+                System.arraycopy(src, pos[0], dst, op, litLen);
+                pos[0] += litLen;
+                op += litLen;
+                if (pos[0] == end) {
+                    break;
+                }
+                final int offset = (src[pos[0]] & 0xFF) | ((src[pos[0] + 1] & 0xFF) << 8);
+                pos[0] += 2;
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    matchLen += readLength(src, pos);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || op + matchLen > dstEnd) {
+                    throw Err.error("corrupted LZ block: wrong match, offset: %s, length: %s", offset, matchLen);
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw Err.error(e, "corrupted LZ block: unexpected end");
+        }
+        if (op != dstEnd) {
+            throw Err.error("corrupted LZ block: expected %s bytes, got %s", rawLen, op - dstOff);
+        }
+    }
+}
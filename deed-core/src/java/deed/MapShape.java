@@ -0,0 +1,54 @@
+package deed;
+
+// The ordered keys of a small map. Keywords are interned,
+// so the keys are compared by identity.
+final class MapShape {
+
+    private Object[] keys;
+    private int len;
+    private int hash;
+
+    MapShape(final Object[] keys, final int len) {
+        set(keys, len);
+    }
+
+    // Lets a single instance probe a table without allocation
+    MapShape set(final Object[] keys, final int len) {
+        this.keys = keys;
+        this.len = len;
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + System.identityHashCode(keys[i]);
+        }
+        this.hash = h;
+        return this;
+    }
+
+    MapShape copy() {
+        final Object[] copy = new Object[len];
+        System.arraycopy(keys, 0, copy, 0, len);
+        return new MapShape(copy, len);
+    }
+
+    Object[] keys() {
+        return keys;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof MapShape s) || s.len != len || s.hash != hash) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.keys[i] != keys[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -112,4 +112,16 @@ public class OID {
     public static final short CLJ_BIG_INT               = 0x0068;
     public static final short CLJ_RATIO                 = 0x0069;
     public static final short VECTORZ_AVECTOR           = 0x006A;
+    public static final short STRING_REF                = 0x006B;
+    public static final short OBJ_REF_NEW               = 0x006C;
+    public static final short OBJ_REF                   = 0x006D;
+    public static final short CLJ_MAP_SHAPE             = 0x006E;
+    public static final short CLJ_MAP_SHAPED            = 0x006F;
+    public static final short CLJ_VEC_COLUMNS           = 0x0070;
+    public static final short CLJ_VEC_LONGS             = 0x0071;
+    public static final short CLJ_VEC_DOUBLES           = 0x0072;
+    public static final short ARR_LONG_DELTA            = 0x0073;
+    public static final short CLJ_VEC_LONGS_DELTA       = 0x0074;
+    public static final short CLJ_VEC_INSTANTS          = 0x0075;
+    public static final short CLJ_VEC_DATES             = 0x0076;
 }
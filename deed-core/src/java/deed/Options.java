@@ -8,7 +8,24 @@ public record Options(
         boolean encodeUnsupported,
         boolean ioUseTempFile,
         boolean saveMeta,
-        boolean append
+        boolean append,
+        int bufferSize,
+        boolean zeroCopy,
+        long ioTempFileThreshold,
+        boolean varint,
+        short version,
+        boolean dedupeStrings,
+        boolean trackRefs,
+        boolean mapShapes,
+        boolean columnar,
+        boolean keepColumns,
+        boolean packNumbers,
+        boolean delta,
+        boolean framed,
+        byte frameCodec,
+        int frameSize,
+        boolean frameChecksum,
+        boolean frameAligned
 ) {
 
     public static Options standard() {
@@ -30,6 +47,23 @@ public record Options(
         private boolean ioUseTempFile = Const.OPT_USE_IO_TEMP_FILE;
         private boolean saveMeta = Const.OPT_SAVE_META;
         private boolean append = Const.OPT_APPEND;
+        private int bufferSize = Const.OPT_BUFFER_SIZE;
+        private boolean zeroCopy = Const.OPT_ZERO_COPY;
+        private long ioTempFileThreshold = Const.OPT_IO_TEMP_FILE_THRESHOLD;
+        private boolean varint = Const.OPT_VARINT;
+        private short version = Const.HEADER_VERSION;
+        private boolean dedupeStrings = Const.OPT_DEDUPE_STRINGS;
+        private boolean trackRefs = Const.OPT_TRACK_REFS;
+        private boolean mapShapes = Const.OPT_MAP_SHAPES;
+        private boolean columnar = Const.OPT_COLUMNAR;
+        private boolean keepColumns = Const.OPT_KEEP_COLUMNS;
+        private boolean packNumbers = Const.OPT_PACK_NUMBERS;
+        private boolean delta = Const.OPT_DELTA;
+        private boolean framed = Const.OPT_FRAMED;
+        private byte frameCodec = Const.OPT_FRAME_CODEC;
+        private int frameSize = Const.OPT_FRAME_SIZE;
+        private boolean frameChecksum = Const.OPT_FRAME_CHECKSUM;
+        private boolean frameAligned = Const.OPT_FRAME_ALIGNED;
 
         @SuppressWarnings("unused")
         public Builder derefTimeoutMs(final long derefTimeoutMs) {
@@ -79,6 +113,108 @@ public record Options(
             return this;
         }
 
+        @SuppressWarnings("unused")
+        public Builder bufferSize(final int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder zeroCopy(final boolean zeroCopy) {
+            this.zeroCopy = zeroCopy;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder ioTempFileThreshold(final long ioTempFileThreshold) {
+            this.ioTempFileThreshold = ioTempFileThreshold;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder varint(final boolean varint) {
+            this.varint = varint;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder version(final short version) {
+            this.version = version;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder dedupeStrings(final boolean dedupeStrings) {
+            this.dedupeStrings = dedupeStrings;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder trackRefs(final boolean trackRefs) {
+            this.trackRefs = trackRefs;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder mapShapes(final boolean mapShapes) {
+            this.mapShapes = mapShapes;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder columnar(final boolean columnar) {
+            this.columnar = columnar;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder keepColumns(final boolean keepColumns) {
+            this.keepColumns = keepColumns;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder packNumbers(final boolean packNumbers) {
+            this.packNumbers = packNumbers;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder delta(final boolean delta) {
+            this.delta = delta;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder framed(final boolean framed) {
+            this.framed = framed;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder frameCodec(final byte frameCodec) {
+            this.frameCodec = frameCodec;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder frameSize(final int frameSize) {
+            this.frameSize = frameSize;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder frameChecksum(final boolean frameChecksum) {
+            this.frameChecksum = frameChecksum;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder frameAligned(final boolean frameAligned) {
+            this.frameAligned = frameAligned;
+            return this;
+        }
+
         public Options build() {
             return new Options(
                     derefTimeoutMs,
@@ -88,7 +224,24 @@ public record Options(
                     encodeUnsupported,
                     ioUseTempFile,
                     saveMeta,
-                    append
+                    append,
+                    bufferSize,
+                    zeroCopy,
+                    ioTempFileThreshold,
+                    varint,
+                    version,
+                    dedupeStrings,
+                    trackRefs,
+                    mapShapes,
+                    columnar,
+                    keepColumns,
+                    packNumbers,
+                    delta,
+                    framed,
+                    frameCodec,
+                    frameSize,
+                    frameChecksum,
+                    frameAligned
             );
         }
     }
@@ -0,0 +1,222 @@
+package deed;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.MultiFn;
+import clojure.lang.RT;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+// Decodes the blocks of aligned frames at the same time. Every
+// block starts at the edge of a top-level object, so it can be
+// decoded apart with the header of its frame. The reader thread
+// only reads blocks and peeks the header of each frame.
+public final class ParallelDecoder implements Iterable<Object>, AutoCloseable {
+
+    private static final Object END = new Object();
+
+    private final MultiFn mmDecode;
+    private final FrameInputStream frames;
+    private final Options options;
+    private final ForkJoinPool pool;
+    private final boolean ordered;
+    private final int window;
+    private final ArrayDeque<CompletableFuture<Object>> pending;
+    private Header header = null;
+    private boolean started = false;
+    private boolean done = false;
+
+    private ParallelDecoder(final MultiFn mmDecode,
+                            final InputStream inputStream,
+                            final Options options,
+                            final ForkJoinPool pool,
+                            final boolean ordered) {
+        this.mmDecode = mmDecode;
+        this.frames = new FrameInputStream(inputStream);
+        this.options = options;
+        this.pool = pool;
+        this.ordered = ordered;
+        this.window = Math.max(2, pool.getParallelism() * 2);
+        this.pending = new ArrayDeque<>();
+    }
+
+    @SuppressWarnings("unused")
+    public static ParallelDecoder create(final MultiFn mmDecode,
+                                         final InputStream inputStream,
+                                         final Options options,
+                                         final ForkJoinPool pool,
+                                         final boolean ordered) {
+        return new ParallelDecoder(mmDecode, inputStream, options, pool, ordered);
+    }
+
+    @SuppressWarnings("unused")
+    public static ParallelDecoder create(final MultiFn mmDecode, final InputStream inputStream, final Options options) {
+        return create(mmDecode, inputStream, options, ForkJoinPool.commonPool(), true);
+    }
+
+    // The header a frame starts with, if any
+    private static Header peekHeader(final byte[] raw) {
+        if (raw.length < 8) {
+            return null;
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(raw);
+        if (bb.getShort(0) != OID.HEADER) {
+            return null;
+        }
+        return Header.read(bb.getShort(2), bb.getInt(4));
+    }
+
+    // A list of items, or a reduction when reducef is given
+    private Object decodeBlock(final byte[] raw, final Header seed, final IFn combinef, final IFn reducef) {
+        final Decoder decoder = seed == null
+                ? Decoder.create(mmDecode, ByteBuffer.wrap(raw), options)
+                : Decoder.create(mmDecode, ByteBuffer.wrap(raw), options, seed);
+        if (reducef == null) {
+            final List<Object> items = new ArrayList<>();
+            for (final Object x : decoder) {
+                items.add(x);
+            }
+            return items;
+        }
+        Object acc = combinef.invoke();
+        for (final Object x : decoder) {
+            acc = reducef.invoke(acc, x);
+            if (RT.isReduced(acc)) {
+                return ((IDeref) acc).deref();
+            }
+        }
+        return acc;
+    }
+
+    // Reads the next block and schedules it; false at the end
+    private boolean submitNext(final IFn combinef, final IFn reducef) {
+        final FrameInputStream.Block block = frames.readRawBlock();
+        if (block == null) {
+            return false;
+        }
+        if (!block.aligned()) {
+            throw Err.error("frame block %s is not aligned, encode it with the frame-aligned option", block.index());
+        }
+        final Header seed = header;
+        final byte[] raw;
+        if (block.first()) {
+            raw = block.unpack();
+            final Header h = peekHeader(raw);
+            if (h != null) {
+                header = h;
+            } else if (header == null) {
+                throw Err.error("the data has no header");
+            }
+            if (header.dedupeStrings()) {
+                throw Err.error("deduplicated strings cannot be decoded in parallel");
+            }
+        } else {
+            raw = null;
+        }
+        pending.add(CompletableFuture.supplyAsync(
+                () -> decodeBlock(raw == null ? block.unpack() : raw, seed, combinef, reducef), pool));
+        return true;
+    }
+
+    private static Object join(final CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw Err.error(e.getCause(), "could not decode a frame block");
+        }
+    }
+
+    // The result of the next block, or END when there are no more
+    private Object nextResult(final boolean inOrder, final IFn combinef, final IFn reducef) {
+        started = true;
+        while (!done && pending.size() < window) {
+            if (!submitNext(combinef, reducef)) {
+                done = true;
+            }
+        }
+        if (pending.isEmpty()) {
+            return END;
+        }
+        if (inOrder) {
+            return join(pending.poll());
+        }
+        // wait for any block, a failed one included, then take it
+        CompletableFuture.anyOf(pending.toArray(new CompletableFuture<?>[0])).handle((r, e) -> null).join();
+        final Iterator<CompletableFuture<Object>> iter = pending.iterator();
+        while (iter.hasNext()) {
+            final CompletableFuture<Object> future = iter.next();
+            if (future.isDone()) {
+                iter.remove();
+                return join(future);
+            }
+        }
+        throw Err.error("no frame block is done");
+    }
+
+    // Reduce every block in the pool and combine the results in
+    // block order, even when not ordered. Only a fresh decoder
+    // can be folded.
+    @SuppressWarnings("unused")
+    public Object fold(final IFn combinef, final IFn reducef) {
+        if (started) {
+            throw Err.error("the parallel decoder has been read already");
+        }
+        Object result = combinef.invoke();
+        Object part;
+        while ((part = nextResult(true, combinef, reducef)) != END) {
+            result = combinef.invoke(result, part);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<>() {
+
+            private Iterator<?> items = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!items.hasNext()) {
+                    final Object result = nextResult(ordered, null, null);
+                    if (result == END) {
+                        return false;
+                    }
+                    items = ((List<?>) result).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Object next() {
+                if (hasNext()) {
+                    return items.next();
+                } else {
+                    throw new NoSuchElementException("parallel decoder iterator");
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        for (final CompletableFuture<Object> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+        try {
+            frames.close();
+        } catch (IOException e) {
+            throw Err.error(e, "could not close the stream");
+        }
+    }
+}
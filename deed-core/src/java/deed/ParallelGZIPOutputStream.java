@@ -0,0 +1,183 @@
+package deed;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes a single-member gzip stream like pigz does: the input is
+// cut into blocks which get deflated on the executor at the same
+// time. Each block is sync-flushed and primed with the last 32Kb
+// of the previous one, so the result is one deflate stream. The
+// CRC is computed in the caller's thread.
+public final class ParallelGZIPOutputStream extends OutputStream {
+
+    private static final int DICT_SIZE = 0x8000;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending;
+    private final CRC32 crc;
+    private byte[] block;
+    private byte[] prev;
+    private int prevLen;
+    private int count;
+    private long total;
+    private boolean started;
+    private boolean closed;
+
+    public ParallelGZIPOutputStream(final OutputStream out,
+                                    final ExecutorService executor,
+                                    final int blockSize,
+                                    final int level) {
+        if (blockSize < Const.MIN_BUFFER_SIZE) {
+            throw Err.error("the block size is too small: %s", blockSize);
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPending = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+        this.pending = new ArrayDeque<>();
+        this.crc = new CRC32();
+        this.block = new byte[blockSize];
+        this.prev = null;
+    }
+
+    public static ParallelGZIPOutputStream of(final OutputStream out) {
+        return new ParallelGZIPOutputStream(out, ForkJoinPool.commonPool(), Const.GZIP_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static byte[] deflate(final byte[] block, final int len,
+                                  final byte[] dict, final int dictLen,
+                                  final int level, final boolean last) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictLen > 0) {
+                final int n = Math.min(dictLen, DICT_SIZE);
+                deflater.setDictionary(dict, dictLen - n, n);
+            }
+            deflater.setInput(block, 0, len);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] result = new byte[len / 2 + 64];
+            int size = 0;
+            while (true) {
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                final int n = deflater.deflate(result, size, result.length - size,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += n;
+                if (last ? deflater.finished() : size < result.length) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(result, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (!started) {
+            started = true;
+            out.write(new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF});
+        }
+    }
+
+    private void writeResult(final Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while deflating a block");
+        } catch (ExecutionException e) {
+            throw new IOException("could not deflate a block", e.getCause());
+        }
+    }
+
+    private void drain(final int keep) throws IOException {
+        while (pending.size() > keep || (!pending.isEmpty() && pending.peek().isDone())) {
+            writeResult(pending.poll());
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        writeHeader();
+        final byte[] data = block;
+        final byte[] dict = prev;
+        final int dictLen = prevLen;
+        final int len = count;
+        crc.update(data, 0, len);
+        total += len;
+        pending.add(executor.submit(() -> deflate(data, len, dict, dictLen, level, last)));
+        prev = data;
+        prevLen = len;
+        block = new byte[blockSize];
+        count = 0;
+        drain(maxPending);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == blockSize) {
+            submit(false);
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == blockSize) {
+                submit(false);
+            }
+            final int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Flushing cuts the current block short and waits for all of them
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submit(false);
+        }
+        drain(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            drain(0);
+            final long value = crc.getValue();
+            final byte[] trailer = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >>> (i * 8));
+                trailer[i + 4] = (byte) (total >>> (i * 8));
+            }
+            out.write(trailer);
+        } finally {
+            out.close();
+        }
+    }
+}
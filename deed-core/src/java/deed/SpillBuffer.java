@@ -0,0 +1,111 @@
+package deed;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Keeps bytes in memory up to the threshold, then moves them
+// into a temp file and writes the rest straight to its channel
+public final class SpillBuffer implements AutoCloseable {
+
+    private final long threshold;
+    private byte[] memory;
+    private int count;
+    private File file;
+    private FileChannel channel;
+    private boolean handedOver;
+
+    private SpillBuffer(final long threshold) {
+        this.threshold = threshold;
+        this.memory = new byte[(int) Math.min(threshold, Const.MIN_BUFFER_SIZE)];
+        this.count = 0;
+    }
+
+    public static SpillBuffer inMemory() {
+        return new SpillBuffer(Integer.MAX_VALUE - 8);
+    }
+
+    public static SpillBuffer withThreshold(final long threshold) {
+        return new SpillBuffer(threshold);
+    }
+
+    private void spill() {
+        file = IOTool.tempFile();
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            writeFully(ByteBuffer.wrap(memory, 0, count));
+        } catch (IOException e) {
+            throw Err.error(e, "could not write a temp file: %s", file);
+        }
+        memory = null;
+    }
+
+    private void writeFully(final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    // Consumes the remaining bytes of the buffer
+    public void write(final ByteBuffer src) {
+        final int len = src.remaining();
+        if (channel == null && count + (long) len > threshold) {
+            if (threshold >= Integer.MAX_VALUE - 8) {
+                throw Err.error("too many bytes to keep in memory: %s", count + (long) len);
+            }
+            spill();
+        }
+        if (channel == null) {
+            if (count + len > memory.length) {
+                final long capacity = Math.min(Math.max(memory.length * 2L, count + len), threshold);
+                final byte[] newMemory = new byte[(int) capacity];
+                System.arraycopy(memory, 0, newMemory, 0, count);
+                memory = newMemory;
+            }
+            src.get(memory, count, len);
+            count += len;
+        } else {
+            try {
+                writeFully(src);
+            } catch (IOException e) {
+                throw Err.error(e, "could not write a temp file: %s", file);
+            }
+        }
+    }
+
+    public InputStream toInputStream() {
+        if (channel == null) {
+            return new ByteArrayInputStream(memory, 0, count);
+        } else {
+            closeChannel();
+            // the stream deletes the file on close
+            final InputStream in = TempFileInputStream.of(file);
+            handedOver = true;
+            return in;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw Err.error(e, "could not close a temp file: %s", file);
+            }
+        }
+    }
+
+    // The temp file is removed unless a stream took it over
+    @Override
+    public void close() {
+        try {
+            closeChannel();
+        } finally {
+            if (file != null && !handedOver) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package deed;
+
+import java.io.*;
+
+// A stream over a temp file which is deleted on close
+public class TempFileInputStream extends FileInputStream {
+
+    private final File file;
+
+    private TempFileInputStream(final File file) throws FileNotFoundException {
+        super(file);
+        this.file = file;
+    }
+
+    public static TempFileInputStream of(final File file) {
+        try {
+            return new TempFileInputStream(file);
+        } catch (FileNotFoundException e) {
+            throw Err.error(e, "file %s not found", file);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public File file() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
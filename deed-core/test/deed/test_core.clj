@@ -3,7 +3,10 @@
                             ex-message
                             ex-cause])
   (:import
-   (deed Encoder)
+   (deed Encoder
+         Decoder
+         LZBlock
+         TempFileInputStream)
    (java.math BigInteger
               BigDecimal)
    (java.time LocalDate
@@ -17,6 +20,7 @@
               Period
               ZoneId)
    (java.nio ByteBuffer)
+   (java.nio.channels WritableByteChannel)
    (java.sql Time
              Timestamp)
    (java.util.stream Stream)
@@ -30,16 +34,22 @@
               HashMap)
    (java.io IOException
             InputStream
+            ByteArrayInputStream
+            FileInputStream
             FileOutputStream
             File)
    (java.net URL
              URI)
    (java.util.zip GZIPInputStream)
-   (java.util.concurrent ArrayBlockingQueue)
+   (java.util.concurrent ArrayBlockingQueue
+                         ForkJoinPool
+                         Executors)
    (clojure.lang Atom
                  ExceptionInfo
                  RT
                  PersistentQueue
+                 PersistentArrayMap
+                 PersistentTreeMap
                  Ref
                  BigInt
                  Ratio)
@@ -47,6 +57,7 @@
    (java.io ByteArrayOutputStream))
   (:require
    [clojure.string :as str]
+   [clojure.core.reducers :as r]
    [clojure.java.io :as io]
    [deed.core :as d]
    [clojure.test :refer [is deftest testing]]))
@@ -1140,11 +1151,73 @@
     (d/encode-to a file)
 
     (let [b (d/decode-from file {:io-temp-file? true})]
-      (is (= "java.io.FileInputStream"
-             (-> b class .getName)))
+      (is (instance? FileInputStream b))
       (is (= string (slurp b))))))
 
 
+(deftest test-input-stream-temp-file-threshold
+  (let [string (str/join (repeat 100000 "abc"))
+        buf (d/encode-to-bytes (-> string .getBytes io/input-stream))]
+
+    (testing "below the threshold"
+      (let [b (d/decode-from buf {:io-temp-file? true
+                                  :io-temp-file-threshold 300000})]
+        (is (instance? ByteArrayInputStream b))
+        (is (= string (slurp b)))))
+
+    (testing "spilled, deleted on close"
+      (let [^TempFileInputStream b
+            (d/decode-from buf {:io-temp-file? true
+                                :io-temp-file-threshold 1000
+                                :buffer-size 0})
+            file (.file b)]
+        (is (.exists file))
+        (is (= string (slurp b)))
+        (is (not (.exists file)))))
+
+    (testing "no temp files left after a failure"
+      (let [temp-files (fn []
+                         (->> (System/getProperty "java.io.tmpdir")
+                              io/file
+                              .listFiles
+                              (filter #(re-matches #"temp.*\.tmp" (.getName ^File %)))
+                              (map str)
+                              set))
+            before (temp-files)
+            truncated (java.util.Arrays/copyOf ^bytes buf (- (alength ^bytes buf) 1000))]
+        (is (thrown? Exception
+                     (d/decode-from truncated {:io-temp-file? true
+                                               :io-temp-file-threshold 1000
+                                               :buffer-size 0})))
+        (is (empty? (remove before (temp-files))))))))
+
+
+(deftest test-file-and-path
+  (let [string (str/join (repeat 100000 "abc"))
+        src (get-temp-file "test" ".txt")
+        dump (get-temp-file "test" ".dump")
+        data {:file src :path (.toPath src)}]
+
+    (spit src string)
+
+    (testing "stream"
+      (let [{:keys [file path]} (enc-dec data {:buffer-size 0})]
+        (is (instance? InputStream file))
+        (is (= string (slurp file)))
+        (is (= string (slurp path)))))
+
+    (testing "memory"
+      (let [{:keys [file]} (d/decode-from (d/encode-to-bytes data))]
+        (is (= string (slurp file)))))
+
+    (testing "file channel"
+      (d/encode-to data dump)
+      (let [{:keys [file path]} (d/decode-from dump {:io-temp-file? true})]
+        (is (instance? FileInputStream file))
+        (is (= string (slurp file)))
+        (is (= string (slurp path)))))))
+
+
 (deftest test-meta-simple
   (let [a ^{:foo [1 2 3]} [:a :b :c]
         b (enc-dec a)]
@@ -1245,10 +1318,749 @@
     (is (= [1 2 3] res))))
 
 
+(defn buffer->bytes ^bytes [^ByteBuffer bb]
+  (let [buf (byte-array (.remaining bb))]
+    (.get (.duplicate bb) buf)
+    buf))
+
 (deftest test-bytebuffer
   (let [a (doto (ByteBuffer/allocate 32)
             (.putFloat (float 123.123)))
         ^ByteBuffer b (enc-dec a)]
     (is (instance? ByteBuffer b))
-    (is (= 4 (.position b)))
-    (is (= 32 (.limit b)))))
+    (is (= 0 (.position b)))
+    (is (= 28 (.limit b))))
+
+  (testing "direct and read-only"
+    (doseq [^ByteBuffer a [(-> (ByteBuffer/allocateDirect 0xFFFFF)
+                               (.put (byte-array (range 0xFFFFF)))
+                               (.position 3)
+                               (.limit 0xFFFF0))
+                           (-> (ByteBuffer/wrap (byte-array (range 64)) 3 50)
+                               (.asReadOnlyBuffer))]
+            opt [nil {:buffer-size 0}]]
+      (let [expected (vec (buffer->bytes a))
+            b1 (enc-dec a opt)
+            b2 (d/decode-from (d/encode-to-bytes a opt))]
+        (is (= 3 (.position a)))
+        (is (= expected (vec (buffer->bytes b1))))
+        (is (= expected (vec (buffer->bytes b2))))))))
+
+
+(deftest test-option-buffer-size
+  (let [s (str/join (repeat 1000 "abc"))
+        data {:string s
+              :bytes (.getBytes s)
+              :items (vec (range 1000))}]
+
+    (is (= (update data :bytes vec)
+           (-> data
+               (enc-dec {:buffer-size 0})
+               (update :bytes vec))))
+
+    (is (= (update data :bytes vec)
+           (-> data
+               (enc-dec {:buffer-size 300})
+               (update :bytes vec)))))
+
+  (testing "the buffer grows up to its size"
+    (let [data (vec (range 10000))
+          out (ByteArrayOutputStream.)
+          sizes (atom [])
+          channel (reify WritableByteChannel
+                    (isOpen [_] true)
+                    (close [_])
+                    (write [_ bb]
+                      (let [len (.remaining bb)]
+                        (swap! sizes conj len)
+                        (.write out (buffer->bytes bb))
+                        (.position bb (.limit bb))
+                        len)))]
+      (with-open [e (d/encoder channel {:buffer-size 0x1000})]
+        (d/encode e data))
+      (is (< 1 (count @sizes)))
+      (is (every? #(<= % 0x1000) @sizes))
+      (is (= data (d/decode-from (.toByteArray out)))))))
+
+
+(deftest test-decode-slow-stream
+  (let [data {:string (str/join (repeat 1000 "abc"))
+              :items (vec (range 1000))}
+        ^bytes buf (d/encode-to-bytes data)
+        in (new java.io.ByteArrayInputStream buf)
+        ;; a stream that gives one byte per read
+        slow (proxy [InputStream] []
+               (read
+                 ([] (.read in))
+                 ([^bytes b off len]
+                  (.read in b off (min 1 len)))))]
+    (is (= data (d/decode-from slow {:buffer-size 0xFF})))))
+
+
+(deftest test-primitive-arrays-large
+  (let [n 100000
+        xs (range n)
+        cs (map #(char (mod % 0xD000)) xs)]
+    (doseq [options [nil {:buffer-size 0xFF}]]
+      (is (= (vec (int-array xs)) (vec (enc-dec (int-array xs) options))))
+      (is (= (vec (long-array xs)) (vec (enc-dec (long-array xs) options))))
+      (is (= (vec (short-array xs)) (vec (enc-dec (short-array xs) options))))
+      (is (= (vec (float-array xs)) (vec (enc-dec (float-array xs) options))))
+      (is (= (vec (double-array xs)) (vec (enc-dec (double-array xs) options))))
+      (is (= (vec (char-array cs)) (vec (enc-dec (char-array cs) options))))
+      (is (= (vec (boolean-array (map even? xs)))
+             (vec (enc-dec (boolean-array (map even? xs)) options)))))))
+
+
+(deftest test-encode-to-byte-buffer
+
+  (testing "default"
+    (let [bb (d/encode-to-byte-buffer {:foo 1})]
+      (is (instance? ByteBuffer bb))
+      (is (zero? (.position bb)))
+      (is (= (vec (d/encode-to-bytes {:foo 1}))
+             (vec (buffer->bytes bb))))
+      (is (= {:foo 1} (d/decode-from (buffer->bytes bb))))))
+
+  (testing "small message, small buffer"
+    (let [bb (d/encode-to-byte-buffer {:foo 1})]
+      (is (< (alength (.array bb)) 0x400))))
+
+  (testing "large message grows"
+    (let [data (vec (range 100000))
+          bb (d/encode-to-byte-buffer data)]
+      (is (= data (d/decode-from (buffer->bytes bb))))))
+
+  (testing "seq"
+    (let [bb (d/encode-seq-to-byte-buffer [1 2 3])]
+      (is (= [1 2 3] (d/decode-seq-from (buffer->bytes bb))))))
+
+  (testing "supplied heap buffer, no copy"
+    (let [buf (ByteBuffer/allocate 1024)
+          bb (d/encode-to-byte-buffer [1 2 3] buf nil)]
+      (is (identical? (.array buf) (.array bb)))
+      (is (= [1 2 3] (d/decode-from (buffer->bytes bb))))))
+
+  (testing "supplied direct buffer grows"
+    (let [buf (ByteBuffer/allocateDirect 8)
+          data (vec (range 1000))
+          bb (d/encode-to-byte-buffer data buf nil)]
+      (is (.isDirect bb))
+      (is (> (.limit bb) 8))
+      (is (= data (d/decode-from (buffer->bytes bb))))))
+
+  (testing "supplied buffer with position"
+    (doseq [buf [(ByteBuffer/allocate 1024)
+                 (ByteBuffer/allocateDirect 16)]]
+      (.put ^ByteBuffer buf (byte-array [1 2 3 4 5]))
+      (let [data (vec (range 100))
+            bb (d/encode-to-byte-buffer data buf nil)]
+        (is (zero? (.position bb)))
+        (is (= (vec (d/encode-to-bytes data))
+               (vec (buffer->bytes bb))))
+        (is (= data (d/decode-from bb)))
+        (is (= 1 (.get ^ByteBuffer buf 0)))))))
+
+
+(deftest test-decode-from-memory
+
+  (testing "byte buffer"
+    (let [bb (d/encode-seq-to-byte-buffer [1 :foo "bar"])]
+      (is (= [1 :foo "bar"] (d/decode-seq-from bb)))
+      (is (zero? (.position bb)))))
+
+  (testing "direct byte buffer"
+    (let [bb (d/encode-seq-to-byte-buffer [1 :foo "bar"]
+                                          (ByteBuffer/allocateDirect 16)
+                                          nil)]
+      (is (= [1 :foo "bar"] (d/decode-seq-from bb)))))
+
+  (testing "file"
+    (let [file (get-temp-file "test" ".deed")]
+      (d/encode-to (vec (range 100000)) file)
+      (is (= (vec (range 100000)) (d/decode-from file)))))
+
+  (testing "truncated"
+    (let [buf (d/encode-to-bytes "hello")
+          buf (java.util.Arrays/copyOf buf (- (alength buf) 2))]
+      (try
+        (d/decode-from buf)
+        (is false)
+        (catch RuntimeException e
+          (is (-> e ex-message (str/starts-with? "unexpected end of")))))))
+
+  (testing "eof"
+    (let [buf (d/encode-to-bytes [])]
+      (d/with-decoder [d buf]
+        (is (= [] (d/decode d)))
+        (is (d/eof? (d/decode d)))
+        (is (d/eof? (d/decode d)))))))
+
+
+(deftest test-zero-copy
+  (let [blob (.getBytes "some image blob")
+        buf (d/encode-to-bytes {:blob blob
+                                :bb (ByteBuffer/wrap blob 5 5)})
+        {:keys [^ByteBuffer blob ^ByteBuffer bb]}
+        (d/decode-from buf {:zero-copy? true})]
+
+    (is (instance? ByteBuffer blob))
+    (is (.isReadOnly blob))
+    (is (= "some image blob" (String. (buffer->bytes blob))))
+
+    (is (.isReadOnly bb))
+    (is (= "image" (String. (buffer->bytes bb)))))
+
+  (testing "stream source"
+    (let [buf (d/encode-to-bytes (.getBytes "hello"))
+          ^ByteBuffer bb (d/decode-from (io/input-stream buf) {:zero-copy? true})]
+      (is (.isReadOnly bb))
+      (is (= "hello" (String. (buffer->bytes bb)))))))
+
+
+(deftest test-varint
+  (let [data {:ints (mapv int [-1000 -2 2 127 128 300 Integer/MIN_VALUE Integer/MAX_VALUE])
+              :longs [-1000 -2 2 127 128 300 Long/MIN_VALUE Long/MAX_VALUE]
+              :string (str/join (repeat 100 "abc"))
+              :items (vec (for [i (range 1000)]
+                            {:id i :name (str "item" i)}))
+              :longs-array (long-array [1 2 3])
+              :bytes (byte-array [1 2 3])}
+        fixed (d/encode-to-bytes data)
+        compact (d/encode-to-bytes data {:varint? true})
+        result (d/decode-from compact)]
+
+    (is (< (alength compact) (* 0.75 (alength fixed))))
+    (is (= (dissoc data :longs-array :bytes)
+           (dissoc result :longs-array :bytes)))
+    (is (= [1 2 3] (vec (:longs-array result))))
+    (is (= [1 2 3] (vec (:bytes result))))
+
+    (testing "stream"
+      (is (= (:items data)
+             (:items (enc-dec data {:varint? true :buffer-size 0})))))
+
+    (testing "header flag"
+      (with-open [d (d/decoder compact)]
+        (is (.varint (.header ^Decoder d)))
+        (is (= 1 (.version (.header ^Decoder d))))))
+
+    (testing "flagged version"
+      (is (= [0 1] (vec (take 2 (drop 2 (d/encode-to-bytes 1))))))
+      (is (= [1 1] (vec (take 2 (drop 2 (d/encode-to-bytes 1 {:varint? true}))))))
+      (is (= [1 2] (vec (take 2 (drop 2 (d/encode-to-bytes 1 {:varint? true :version 2})))))))
+
+    (testing "unknown flags"
+      (let [^bytes bytes (d/encode-to-bytes 42)]
+        (aset-byte bytes 2 1)
+        (aset-byte bytes 7 4)
+        (is (thrown-with-msg? Exception #"unsupported header flags"
+                              (d/decode-from bytes))))
+      (let [^bytes bytes (d/encode-to-bytes 42)]
+        (aset-byte bytes 7 1)
+        (is (thrown-with-msg? Exception #"not flagged"
+                              (d/decode-from bytes)))))))
+
+
+(deftest test-version-2
+  (let [data {:nums (vec (range 100))
+              :flags [true false nil]
+              :text "hello"}
+        v1 (d/encode-to-bytes data)
+        v2 (d/encode-to-bytes data {:version 2})
+        compact (d/encode-to-bytes data {:version 2 :varint? true})]
+
+    (is (< (alength v2) (alength v1)))
+    (is (< (alength compact) (/ (alength v1) 3)))
+
+    (is (= data (d/decode-from v2)))
+    (is (= data (d/decode-from compact)))
+    (is (= data (enc-dec data {:version 2 :buffer-size 0})))
+
+    (with-open [d (d/decoder v2)]
+      (is (= 2 (d/version d))))
+
+    (testing "custom OID"
+      (let [^FooBar foo (-> (new FooBar :test "hello" {:map true})
+                            (d/encode-to-bytes {:version 2})
+                            (d/decode-from))]
+        (is (= [:test "hello" {:map true}]
+               [(.-a foo) (.-b foo) (.-c foo)])))))
+
+  (testing "mixed versions in one file"
+    (let [file (get-temp-file "test" ".dump")]
+      (d/encode-seq-to [1 2] file {:version 2})
+      (with-open [out (new FileOutputStream file true)]
+        (d/encode-seq-to [3 4] out {:version 1}))
+      (with-open [out (new FileOutputStream file true)]
+        (d/encode-seq-to [5 6] out {:version 2 :varint? true}))
+      (is (= [1 2 3 4 5 6]
+             (remove d/header? (d/decode-seq-from file))))))
+
+  (testing "unsupported"
+    (is (thrown-with-msg? Exception #"unsupported version: 3"
+          (d/encode-to-bytes 1 {:version 3})))))
+
+
+(deftest test-dedupe-strings
+  (let [keys (for [i (range 10)] (keyword "field" (str "key" i)))
+        data (vec (for [i (range 1000)]
+                    (-> (zipmap keys (range))
+                        (assoc :status (if (even? i) "active" "blocked")
+                               :sym 'some/symbol
+                               :text (str/join (repeat 10 "long text "))))))
+        plain (d/encode-to-bytes data)
+        deduped (d/encode-to-bytes data {:dedupe-strings? true})]
+
+    (is (< (alength deduped) (* 0.7 (alength plain))))
+    (is (= data (d/decode-from deduped)))
+    (is (= data (enc-dec data {:dedupe-strings? true :buffer-size 0}))))
+
+  (testing "the table is bounded"
+    (let [data (vec (for [i (range 3) j (range 5000)]
+                      (keyword (str "k" j))))]
+      (is (= data (enc-dec data {:dedupe-strings? true})))))
+
+  (testing "no appending"
+    (is (thrown-with-msg? Exception #"cannot be used when appending"
+          (d/encode-to-bytes 1 {:dedupe-strings? true :append? true})))))
+
+
+(deftest test-keyword-cache
+  (let [long-kw (keyword (str/join (repeat 50 "long")))
+        data (vec (for [i (range 3000)]
+                    [:simple :ns/name :юникод/ключ long-kw
+                     (keyword (str "k" (mod i 1500)))
+                     'sym 'ns/sym (symbol (str "s" i))]))]
+    (is (= data (enc-dec data)))
+    (is (= data (enc-dec data {:buffer-size 0})))
+    (is (= data (d/decode-from (d/encode-to-bytes data))))
+    (is (identical? :ns/name (-> data d/encode-to-bytes d/decode-from peek (get 1))))))
+
+
+(deftest test-string-utf8
+  (let [strings ["" "ascii" "latin: café" "cyrillic: привет" "cjk: 日本語"
+                 "emoji: 😀👍" (str "unpaired: " (char 0xD800) "x" (char 0xDC00))
+                 (str/join (repeat 10000 "абв😀"))]
+        data (vec strings)
+        direct (d/encode-to-byte-buffer data (ByteBuffer/allocateDirect 0xFFFFF) nil)
+        expected (mapv #(String. (.getBytes ^String % "UTF-8") "UTF-8") strings)]
+    (is (= expected (enc-dec data)))
+    (is (= expected (enc-dec data {:buffer-size 0})))
+    (is (= expected (d/decode-from (d/encode-to-bytes data))))
+    (is (= expected (d/decode-from direct)))
+    (is (= (vec (d/encode-to-bytes data))
+           (vec (buffer->bytes direct))))))
+
+
+(deftest test-track-refs
+  (let [shared (vec (range 1000))
+        data {:a shared :b shared :c [shared shared]}
+        plain (d/encode-to-bytes data)
+        tracked (d/encode-to-bytes data {:track-refs? true})
+        result (d/decode-from tracked)]
+    (is (< (* 3 (alength tracked)) (alength plain)))
+    (is (= data result))
+    (is (identical? (:a result) (:b result)))
+    (is (identical? (:a result) (-> result :c first))))
+
+  (testing "cycles"
+    (let [m (new java.util.HashMap)
+          l (new java.util.ArrayList)
+          a (atom nil)
+          _ (do (.put m "self" m)
+                (.put m "list" l)
+                (.add l m)
+                (.add l l)
+                (reset! a {:atom a :map m}))
+          ^java.util.HashMap m2 (enc-dec m {:track-refs? true})
+          ^java.util.ArrayList l2 (.get m2 "list")
+          a2 (d/decode-from (d/encode-to-bytes a {:track-refs? true}))]
+      (is (identical? m2 (.get m2 "self")))
+      (is (identical? m2 (.get l2 0)))
+      (is (identical? l2 (.get l2 1)))
+      (is (identical? a2 (:atom @a2)))
+      (is (identical? (:map @a2) (.get ^java.util.HashMap (:map @a2) "self")))))
+
+  (testing "ref cycles"
+    (let [r (ref nil)
+          _ (dosync (ref-set r {:self r :items [1 2 3]}))
+          r2 (d/decode-from (d/encode-to-bytes r {:track-refs? true}))]
+      (is (instance? Ref r2))
+      (is (identical? r2 (:self @r2)))
+      (is (= [1 2 3] (:items @r2)))
+      (is (= 42 @(enc-dec (ref 42) {:track-refs? true})))))
+
+  (testing "meta and strings"
+    (let [s (str "shared" 1)
+          v (with-meta [s s] {:tag s})
+          data [v v]
+          result (enc-dec data {:track-refs? true :dedupe-strings? true})]
+      (is (= data result))
+      (is (= {:tag "shared1"} (meta (first result))))
+      (is (identical? (first result) (second result))))))
+
+
+(deftest test-map-shapes
+  (let [data (vec (for [i (range 1000)]
+                    (cond-> {:id i :name (str "user" i) :active? (even? i)}
+                      (zero? (mod i 3)) (assoc :extra [i {:nested i}])
+                      (zero? (mod i 5)) (assoc "string" "key"))))
+        plain (d/encode-to-bytes data)
+        shaped (d/encode-to-bytes data {:map-shapes? true})
+        result (d/decode-from shaped)]
+    (is (< (alength shaped) (* 0.7 (alength plain))))
+    (is (= data result))
+    (is (instance? PersistentArrayMap (first result)))
+    (is (= data (enc-dec data {:map-shapes? true
+                               :track-refs? true
+                               :dedupe-strings? true
+                               :version 2
+                               :varint? true})))
+    (is (= {:a 1} (-> [(with-meta {:x 1} {:a 1})]
+                      (d/encode-to-bytes {:map-shapes? true})
+                      (d/decode-from)
+                      first
+                      meta)))))
+
+
+(deftest test-columnar
+  (let [sides ["buy" "sell"]
+        data (vec (for [i (range 10000)]
+                    {:ts (+ 1700000000000 i)
+                     :price (* i 1.5)
+                     :side (get sides (mod i 2))
+                     :id (str "order" i)
+                     :tags [i]}))
+        plain (d/encode-to-bytes data)
+        columns (d/encode-to-bytes data {:columnar? true})]
+
+    (is (< (alength columns) (* 0.75 (alength plain))))
+    (is (= data (d/decode-from columns)))
+    (is (= data (enc-dec data {:columnar? true :buffer-size 0 :varint? true})))
+
+    (testing "keep columns"
+      (let [{:keys [ts price side id tags]}
+            (d/decode-from columns {:keep-columns? true})]
+        (is (= (mapv :ts data) (vec ts)))
+        (is (instance? (Class/forName "[J") ts))
+        (is (instance? (Class/forName "[D") price))
+        (is (= (mapv :side data) side))
+        (is (= (mapv :id data) id))
+        (is (= (mapv :tags data) tags))))
+
+    (testing "not homogeneous"
+      (let [data (conj (vec (repeat 10 {:a 1})) {:b 2})]
+        (is (= data (enc-dec data {:columnar? true})))
+        (is (= (repeat 10 1)
+               (-> (vec (repeat 10 {:a 1}))
+                   (enc-dec {:columnar? true :keep-columns? true})
+                   :a
+                   vec)))))
+
+    (testing "sorted and struct maps"
+      (let [data (vec (for [i (range 10)]
+                        (sorted-map :c i :a (* i 2) :b (* i 3))))
+            result (enc-dec data {:columnar? true})]
+        (is (= data result))
+        (is (every? #(instance? PersistentTreeMap %) result))
+        (is (= [:a :b :c] (keys (first result)))))
+      (let [s (create-struct :a :b)
+            data (vec (for [i (range 10)] (struct s i (inc i))))]
+        (is (= data (enc-dec data {:columnar? true})))))))
+
+
+(deftest test-pack-numbers
+  (let [longs (vec (range -500 500))
+        doubles (mapv #(* % 0.5) (range 1000))
+        data {:longs longs
+              :doubles doubles
+              :list (apply list (range 10))
+              :mixed [1 2.0 3 4]
+              :short [1 2]}
+        plain (d/encode-to-bytes data)
+        packed (d/encode-to-bytes data {:pack-numbers? true})
+        compact (d/encode-to-bytes data {:pack-numbers? true :varint? true})]
+
+    (is (< (alength packed) (* 0.85 (alength plain))))
+    (is (< (alength compact) (* 0.65 (alength packed))))
+    (is (= data (d/decode-from packed)))
+    (is (= data (d/decode-from compact)))
+    (is (= data (enc-dec data {:pack-numbers? true :buffer-size 0})))
+    (is (vector? (:longs (d/decode-from packed))))
+    (is (= [Long Double Long Long] (map class (:mixed (d/decode-from packed)))))))
+
+
+(deftest test-delta
+  (let [start 1700000000000
+        epochs (long-array (range start (+ start (* 1000 10000)) 1000))
+        instants (mapv #(Instant/ofEpochSecond (+ 1700000000 %) (* % 1000)) (range 1000))
+        dates (mapv #(Date. (long (+ start (* % 60000)))) (range 1000))
+        jitter (vec (for [i (range 1000)] (+ start (* i 1000) (mod (* i 7919) 13))))
+        data {:epochs epochs
+              :instants instants
+              :dates dates
+              :jitter jitter
+              :random (long-array [Long/MIN_VALUE 0 Long/MAX_VALUE -1 42])}
+        plain (d/encode-to-bytes data {:pack-numbers? true})
+        delta (d/encode-to-bytes data {:pack-numbers? true :delta? true})
+        result (d/decode-from delta)]
+
+    (is (< (* 8 (alength delta)) (alength plain)))
+    (is (= (vec epochs) (vec (:epochs result))))
+    (is (= instants (:instants result)))
+    (is (= dates (:dates result)))
+    (is (= jitter (:jitter result)))
+    (is (= (vec (:random data)) (vec (:random result))))
+
+    (let [result (enc-dec data {:pack-numbers? true :delta? true :varint? true :buffer-size 0})]
+      (is (= (vec epochs) (vec (:epochs result))))
+      (is (= jitter (:jitter result))))
+
+    (testing "sql dates are left alone"
+      (let [dates (vec (repeat 5 (java.sql.Date. 0)))]
+        (is (= dates (enc-dec dates {:delta? true})))
+        (is (instance? java.sql.Date (first (enc-dec dates {:delta? true}))))))
+
+    (testing "nils"
+      (doseq [items [(into [nil] (take 5 instants))
+                     (into [(first dates) nil] (take 5 dates))
+                     (conj (vec (take 5 instants)) nil)]]
+        (is (= items (enc-dec items {:delta? true})))
+        (let [rows (mapv (fn [x] {:ts x :tags [x x x x]}) (concat items items))]
+          (is (= rows (enc-dec rows {:delta? true :columnar? true}))))))))
+
+
+(deftest test-frame
+  (let [data (vec (for [i (range 5000)]
+                    {:id i
+                     :level (if (even? i) "info" "debug")
+                     :message (str "request handled in " (mod i 17) " ms")
+                     :tags [:http :api]}))
+        plain (d/encode-seq-to-bytes data)
+        framed (d/encode-seq-to-bytes data {:frame? true})]
+
+    (is (< (alength framed) (/ (alength plain) 2)))
+    (is (= data (d/decode-seq-from framed)))
+    (is (= data (d/decode-seq-from (ByteBuffer/wrap framed))))
+    (is (= data (d/decode-seq-from (ByteArrayInputStream. framed))))
+    (is (= data (d/decode-seq-from (d/encode-seq-to-bytes data {:frame? true
+                                                                 :frame-codec :none}))))
+    (is (= data (d/decode-seq-from (d/encode-seq-to-bytes data {:frame? true
+                                                                 :frame-size 256
+                                                                 :buffer-size 0}))))
+
+    (testing "file and append"
+      (let [file (get-temp-file "test" ".deed")]
+        (with-open [out (new FileOutputStream file true)]
+          (d/encode-seq-to data out {:frame? true}))
+        (with-open [out (new FileOutputStream file true)]
+          (d/encode-to 42 out {:frame? true :append? true}))
+        (is (= (conj data 42) (d/decode-seq-from file)))
+        (is (= (conj data 42) (d/decode-seq-from (io/input-stream file))))))
+
+    (testing "incompressible data"
+      (let [bytes (byte-array (repeatedly 100000 #(rand-int 256)))
+            framed (d/encode-to-bytes bytes {:frame? true :frame-size 4096})]
+        (is (< (alength framed) (+ (alength bytes) 1000)))
+        (is (= (vec bytes) (vec (d/decode-from framed))))))
+
+    (testing "truncated"
+      (is (thrown? Exception
+                   (d/decode-seq-from
+                    (java.util.Arrays/copyOf framed (- (alength framed) 100))))))
+
+    (testing "wrong options"
+      (is (thrown? Exception
+                   (d/encode-to-byte-buffer 1 (ByteBuffer/allocate 64) {:frame? true})))
+      (is (thrown? Exception
+                   (d/encode-to-bytes 1 {:frame? true :frame-codec :zstd}))))
+
+    (testing "codec"
+      (let [lz (LZBlock.)]
+        (doseq [^bytes src [(byte-array 0)
+                            (byte-array 1000 (byte 97))
+                            (.getBytes "abcabcabcabcabcabcabcabcabcabcabcx")
+                            (byte-array (repeatedly 3000 #(rand-int 4)))]]
+          (let [dst (byte-array (LZBlock/maxCompressedLength (alength src)))
+                len (.compress lz src 0 (alength src) dst 0)
+                out (byte-array (alength src))]
+            (LZBlock/decompress dst 0 len out 0 (alength src))
+            (is (= (vec src) (vec out)))))))))
+
+
+(deftest test-parallel-gzip-stream
+  (let [file (get-temp-file "test" ".dump.gz")
+        data (vec (for [i (range 20000)]
+                    {:id i :message (str "message " (mod i 100))}))
+        executor (Executors/newFixedThreadPool 4)]
+
+    (try
+      (with-open [out (d/parallel-gzip-output-stream file {:executor executor
+                                                           :block-size 0x8000})]
+        (d/encode-seq-to data out))
+
+      (with-open [in (d/gzip-input-stream file)]
+        (is (= data (d/decode-seq-from in))))
+
+      (testing "same bytes as the input"
+        (let [bytes (d/encode-seq-to-bytes data)
+              out (ByteArrayOutputStream.)]
+          (with-open [gz (d/parallel-gzip-output-stream out {:executor executor
+                                                             :block-size 1000
+                                                             :level 1})]
+            (.write gz bytes 0 100)
+            (.flush gz)
+            (.write gz bytes 100 (- (alength bytes) 100)))
+          (with-open [in (GZIPInputStream. (ByteArrayInputStream. (.toByteArray out)))]
+            (is (= (vec bytes) (vec (.readAllBytes in)))))))
+
+      (testing "empty"
+        (let [out (ByteArrayOutputStream.)]
+          (.close (d/parallel-gzip-output-stream out))
+          (with-open [in (GZIPInputStream. (ByteArrayInputStream. (.toByteArray out)))]
+            (is (= 0 (alength (.readAllBytes in)))))))
+
+      (finally
+        (.shutdown executor)))))
+
+
+(deftest test-frame-checksum
+  (let [data (vec (for [i (range 3000)]
+                    {:id i :name (str "item " (mod i 10))}))
+        bytes (d/encode-seq-to-bytes data {:frame-checksum? true
+                                           :frame-size 4096})
+        file (get-temp-file "test" ".deed")]
+
+    (is (= data (d/decode-seq-from bytes)))
+
+    (let [{:keys [frames blocks checked raw-size stored-size]}
+          (d/verify bytes)]
+      (is (= 1 frames))
+      (is (< 1 blocks))
+      (is (= blocks checked))
+      (is (= raw-size (alength (d/encode-seq-to-bytes data))))
+      (is (< stored-size raw-size)))
+
+    (testing "file and no checksums"
+      (with-open [out (io/output-stream file)]
+        (d/encode-seq-to data out {:frame? true}))
+      (let [{:keys [blocks checked]} (d/verify file)]
+        (is (< 0 blocks))
+        (is (= 0 checked))))
+
+    (testing "corrupted"
+      (let [broken (aclone ^bytes bytes)
+            idx (quot (alength broken) 2)]
+        (aset-byte broken idx (unchecked-byte (inc (aget broken idx))))
+        (is (thrown-with-msg? Exception #"checksum mismatch"
+                              (d/verify broken)))
+        (is (thrown-with-msg? Exception #"checksum mismatch"
+                              (d/decode-seq-from broken))))
+      (is (thrown? Exception
+                   (d/verify (java.util.Arrays/copyOf ^bytes bytes (- (alength bytes) 10)))))
+      (is (thrown-with-msg? Exception #"not framed"
+                            (d/verify (d/encode-to-bytes 1)))))))
+
+
+(deftest test-encode-parallel
+  (let [pool (ForkJoinPool. 4)
+        data (vec (for [i (range 20000)]
+                    {:id i :name (str "item " i) :tags #{(keyword (str "t" (mod i 7)))}}))
+        array (object-array data)
+        parallel (fn [x options]
+                   (with-open [e (Encoder/create ^clojure.lang.IFn d/-encode (d/->options options))]
+                     (d/encode-parallel e x pool)
+                     (.toByteArray e)))]
+    (try
+      (doseq [options [nil {:varint? true} {:version 2} {:varint? true :version 2 :buffer-size 0}]]
+        (is (= (vec (d/encode-to-bytes data options))
+               (vec (parallel data options))))
+        (is (= (vec (d/encode-to-bytes array options))
+               (vec (parallel array options)))))
+
+      (is (= data (d/decode-from (parallel data {:frame? true}))))
+
+      (testing "stream"
+        (let [out (ByteArrayOutputStream.)]
+          (with-open [e (d/encoder out {:buffer-size 0xFF})]
+            (d/encode-parallel e data pool)
+            (d/encode e 42))
+          (is (= [data 42] (d/decode-seq-from (.toByteArray out))))))
+
+      (testing "fallback"
+        (let [data (with-meta data {:foo 1})]
+          (is (= (vec (d/encode-to-bytes data))
+                 (vec (parallel data nil)))))
+        (is (= (vec (d/encode-to-bytes data {:dedupe-strings? true}))
+               (vec (parallel data {:dedupe-strings? true}))))
+        (is (= (vec (d/encode-to-bytes data {:pack-numbers? true :columnar? true}))
+               (vec (parallel data {:pack-numbers? true :columnar? true})))))
+
+      (finally
+        (.shutdown pool)))))
+
+
+(deftest test-decode-parallel
+  (let [pool (ForkJoinPool. 4)
+        data (vec (for [i (range 20000)]
+                    {:id i :name (str "item " i) :ratio (/ i 3)}))
+        file (get-temp-file "test" ".deed")
+        options {:frame-aligned? true :frame-size 4096 :pool pool}]
+
+    (try
+      (with-open [out (io/output-stream file)]
+        (d/encode-seq-to data out options))
+
+      (is (= data (d/decode-seq-from file)))
+      (is (= data (d/decode-seq-parallel file options)))
+      (is (= (set data) (set (d/decode-seq-parallel file (assoc options :ordered? false)))))
+      (is (< 5 (:blocks (d/verify file))))
+
+      (testing "fold and reduce"
+        (with-open [d (d/parallel-decoder file options)]
+          (is (= (reduce + (map :id data))
+                 (r/fold + (r/map :id d)))))
+        (with-open [d (d/parallel-decoder file options)]
+          (is (= 20000 (reduce (fn [acc _] (inc acc)) 0 d))))
+        (with-open [d (d/parallel-decoder file (assoc options :ordered? false))]
+          (is (= data (r/fold (r/monoid into vector) conj d)))
+          (is (= [] (vec d)))
+          (is (thrown-with-msg? Exception #"read already"
+                                (r/fold + (r/map :id d)))))
+        (with-open [d (d/parallel-decoder file options)]
+          (is (= (take 3 data) (take 3 d)))
+          (is (thrown-with-msg? Exception #"read already"
+                                (r/fold + (r/map :id d))))))
+
+      (testing "bytes, versions and appending"
+        (doseq [opts [{:varint? true} {:version 2} {:frame-checksum? true :buffer-size 0}]]
+          (let [bytes (d/encode-seq-to-bytes data (merge options opts))]
+            (is (= data (d/decode-seq-parallel bytes options)))))
+        (with-open [out (FileOutputStream. file true)]
+          (d/encode-seq-to [1 2 3] out (assoc options :version 2)))
+        (let [items (d/decode-seq-parallel file options)]
+          (is (= (d/decode-seq-from file) items))
+          (is (= [1 2 3] (take-last 3 items)))
+          (is (d/header? (nth items 20000)))))
+
+      (testing "large objects"
+        (let [data [(vec (range 100000)) 1 (vec (range 10))]
+              bytes (d/encode-seq-to-bytes data options)]
+          (is (= data (d/decode-seq-parallel bytes options)))))
+
+      (testing "refused"
+        (is (thrown-with-msg? Exception #"not aligned"
+                              (d/decode-seq-parallel (d/encode-seq-to-bytes data {:frame? true}))))
+        (is (thrown? Exception
+                     (d/encode-seq-to-bytes data {:frame-aligned? true :track-refs? true}))))
+
+      (testing "a broken block fails unordered decoding"
+        (let [bytes (d/encode-seq-to-bytes data options)
+              idx (quot (alength bytes) 2)]
+          (java.util.Arrays/fill ^bytes bytes idx (+ idx 64) (byte 0x7F))
+          (is (thrown? Exception
+                       (d/decode-seq-parallel bytes (assoc options :ordered? false))))))
+
+      (finally
+        (.shutdown pool)))))